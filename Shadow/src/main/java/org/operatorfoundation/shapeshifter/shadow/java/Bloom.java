@@ -3,31 +3,241 @@ package org.operatorfoundation.shapeshifter.shadow.java;
 import com.google.common.hash.BloomFilter;
 import com.google.common.hash.Funnels;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+// Bloom remembers the handshakes it has seen so a replayed one can be rejected. It keeps two generations of filter:
+// new salts go into the current one, and lookups check both. The current generation becomes the previous one
+// once it holds capacity salts or is maxAgeMillis old, and the old previous one is dropped. Memory therefore stays
+// at two filters, and the false positive rate stays near the target however long the process runs.
+// Every socket shares one Bloom. In memory, checks run without a lock: the filters are ConcurrentBloomFilters and
+// the generations are swapped atomically. Mapped filters take one of a set of striped locks per word instead.
+// By default the filters live in memory and survive restarts only through save and load. After map they live in a
+// memory-mapped file instead, so each insert reaches the file as it happens and reopening costs a map, not a read.
 public class Bloom {
-    BloomFilter<byte[]> saltHistory = BloomFilter.create(Funnels.byteArrayFunnel(), 1000);
+    public static final int defaultCapacity = 10000;
+    public static final double defaultFalsePositiveProbability = 0.000001;
+    public static final long defaultMaxAgeMillis = 24 * 60 * 60 * 1000L;
 
+    // Written at the start of saved files. Files from before ConcurrentBloomFilter hold Guava filters instead.
+    static final int fileMagic = 0x424C4F33;
+    static final int guavaGenerationsFileMagic = 0x424C4F32;
+
+    final int capacity;
+    final double falsePositiveProbability;
+    final long maxAgeMillis;
+
+    // The size of each generation, worked out once.
+    final int[] generationSize;
+
+    final AtomicReference<Generations> generations = new AtomicReference<>();
+
+    // Held while rotating, so only one thread builds the next generation.
+    final Object rotationLock = new Object();
+
+    static class Generations {
+        final ConcurrentBloomFilter saltHistory;
+        final ConcurrentBloomFilter previousSaltHistory;
+        final long createdAt;
+        final AtomicInteger saltCount;
+
+        // Filters loaded from an older file format, checked until the next rotation.
+        final List<BloomFilter<byte[]>> legacySaltHistories;
+
+        // The file both filters live in, or null when they are in memory.
+        final MappedBloomFile file;
+
+        Generations(ConcurrentBloomFilter saltHistory, ConcurrentBloomFilter previousSaltHistory, long createdAt, int saltCount, List<BloomFilter<byte[]>> legacySaltHistories) {
+            this(saltHistory, previousSaltHistory, createdAt, saltCount, legacySaltHistories, null);
+        }
+
+        Generations(MappedBloomFile file) {
+            this(file.current(), file.previous(), file.createdAt(), file.saltCount(), null, file);
+        }
+
+        Generations(ConcurrentBloomFilter saltHistory, ConcurrentBloomFilter previousSaltHistory, long createdAt, int saltCount, List<BloomFilter<byte[]>> legacySaltHistories, MappedBloomFile file) {
+            this.saltHistory = saltHistory;
+            this.previousSaltHistory = previousSaltHistory;
+            this.createdAt = createdAt;
+            this.saltCount = new AtomicInteger(saltCount);
+            this.legacySaltHistories = legacySaltHistories;
+            this.file = file;
+        }
+
+        boolean previousMightContain(byte[] salt) {
+            if (previousSaltHistory != null && previousSaltHistory.mightContain(salt)) {
+                return true;
+            }
+
+            if (legacySaltHistories != null) {
+                for (BloomFilter<byte[]> legacy : legacySaltHistories) {
+                    if (legacy.mightContain(salt)) {
+                        return true;
+                    }
+                }
+            }
+
+            return false;
+        }
+    }
+
+    public Bloom() {
+        this(defaultCapacity, defaultFalsePositiveProbability, defaultMaxAgeMillis);
+    }
+
+    // A salt is remembered for at least capacity further salts or maxAgeMillis, whichever comes first.
+    public Bloom(int capacity, double falsePositiveProbability, long maxAgeMillis) {
+        this.capacity = capacity;
+        this.falsePositiveProbability = falsePositiveProbability;
+        this.maxAgeMillis = maxAgeMillis;
+
+        // lookups check two generations, so each is built for half the target rate to keep the total on target
+        this.generationSize = ConcurrentBloomFilter.size(capacity, falsePositiveProbability / 2);
+        this.generations.set(new Generations(newGeneration(), null, System.currentTimeMillis(), 0, null));
+    }
+
+    // Returns true if salt has been seen before, and remembers it otherwise. Safe to call from many threads at once.
     public Boolean checkBloom(byte[] salt) {
-        if (saltHistory.mightContain(salt)) {
+        Generations current = rotateIfDue(System.currentTimeMillis());
+
+        if (current.previousMightContain(salt) || !current.saltHistory.putIfAbsent(salt)) {
+            ShadowMetrics.duplicateSalt();
+            return true;
+        }
+
+        // If a rotation happened meanwhile, a thread with the same salt may have checked only the new generation,
+        // so settle it there: exactly one insert into the newest generation can succeed.
+        Generations latest = generations.get();
+        if (latest != current && !latest.saltHistory.putIfAbsent(salt)) {
+            ShadowMetrics.duplicateSalt();
             return true;
-        } else {
-            saltHistory.put(salt);
-            return false;
+        }
+
+        int saltCount = current.saltCount.incrementAndGet();
+        if (current.file != null) {
+            current.file.recordSaltCount(current.saltHistory, saltCount);
+        }
+
+        return false;
+    }
+
+    // Moves the filters into the memory-mapped file fileName, creating it if needed. An existing file is used as it is,
+    // with the size it was created with, and replaces whatever this Bloom held. Opening does not read the file.
+    public void map(String fileName) throws IOException {
+        MappedBloomFile file = new MappedBloomFile(fileName, generationSize[0], generationSize[1], System.currentTimeMillis());
+
+        synchronized (rotationLock) {
+            Generations replaced = generations.getAndSet(new Generations(file));
+            if (replaced.file != null) {
+                replaced.file.close();
+            }
+        }
+    }
+
+    // Writes a mapped filter back to its file now. Does nothing when the filters are in memory.
+    public void flush() {
+        MappedBloomFile file = generations.get().file;
+        if (file != null) {
+            file.force();
         }
     }
 
     public void save(String fileName) throws IOException {
-        OutputStream output = new FileOutputStream(fileName);
-        saltHistory.writeTo(output);
+        Generations current = generations.get();
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)))) {
+            output.writeInt(fileMagic);
+            output.writeLong(current.createdAt);
+            output.writeInt(current.saltCount.get());
+            current.saltHistory.writeTo(output);
+            output.writeBoolean(current.previousSaltHistory != null);
+            if (current.previousSaltHistory != null) {
+                current.previousSaltHistory.writeTo(output);
+            }
+        }
     }
 
+    // Replaces the filters with ones read from fileName. A mapped Bloom goes back to keeping its filters in memory.
     public void load(String fileName) throws IOException {
-        InputStream input = new FileInputStream(fileName);
-        saltHistory = BloomFilter.readFrom(input, Funnels.byteArrayFunnel());
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)))) {
+            input.mark(4);
+            int magic = input.readInt();
+
+            if (magic == fileMagic) {
+                long createdAt = input.readLong();
+                int saltCount = input.readInt();
+                ConcurrentBloomFilter saltHistory = ConcurrentBloomFilter.readFrom(input);
+                ConcurrentBloomFilter previousSaltHistory = input.readBoolean() ? ConcurrentBloomFilter.readFrom(input) : null;
+                replace(new Generations(saltHistory, previousSaltHistory, createdAt, saltCount, null));
+                return;
+            }
+
+            // older files hold Guava filters: two generations, or before that a single filter
+            List<BloomFilter<byte[]>> legacySaltHistories = new ArrayList<>();
+            if (magic == guavaGenerationsFileMagic) {
+                input.readLong();
+                input.readInt();
+                legacySaltHistories.add(BloomFilter.readFrom(input, Funnels.byteArrayFunnel()));
+                if (input.readBoolean()) {
+                    legacySaltHistories.add(BloomFilter.readFrom(input, Funnels.byteArrayFunnel()));
+                }
+            } else {
+                input.reset();
+                legacySaltHistories.add(BloomFilter.readFrom(input, Funnels.byteArrayFunnel()));
+            }
+
+            replace(new Generations(newGeneration(), null, System.currentTimeMillis(), 0, legacySaltHistories));
+        }
+    }
+
+    void replace(Generations loaded) {
+        synchronized (rotationLock) {
+            Generations replaced = generations.getAndSet(loaded);
+            if (replaced.file != null) {
+                replaced.file.close();
+            }
+        }
+    }
+
+    // Retires the current generation if it is full or too old. Only the rotation itself takes rotationLock.
+    Generations rotateIfDue(long now) {
+        Generations current = generations.get();
+        if (!isDue(current, now)) {
+            return current;
+        }
+
+        synchronized (rotationLock) {
+            current = generations.get();
+            if (!isDue(current, now)) {
+                return current;
+            }
+
+            Generations rotated;
+            if (current.file != null) {
+                current.file.rotate(now);
+                rotated = new Generations(current.file);
+            } else {
+                rotated = new Generations(newGeneration(), current.saltHistory, now, 0, null);
+            }
+
+            generations.set(rotated);
+            return rotated;
+        }
+    }
+
+    boolean isDue(Generations current, long now) {
+        return current.saltCount.get() >= capacity || now - current.createdAt >= maxAgeMillis;
+    }
+
+    ConcurrentBloomFilter newGeneration() {
+        return new ConcurrentBloomFilter(generationSize[0], generationSize[1]);
     }
 }
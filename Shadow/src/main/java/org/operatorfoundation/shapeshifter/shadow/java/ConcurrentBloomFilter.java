@@ -0,0 +1,216 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// ConcurrentBloomFilter is a Bloom filter that many threads can test and insert into at once without a lock.
+// All of an item's bits live in a single 64-bit word, so putIfAbsent sets them with one compare-and-set: when two
+// threads insert the same item at the same moment exactly one of them sees it as new. Keeping the bits in one word
+// costs more memory than a classic Bloom filter for the same false positive rate, and size() accounts for that.
+public class ConcurrentBloomFilter
+{
+    static final HashFunction hashFunction = Hashing.murmur3_128();
+
+    // The most bits per item: 10 six-bit positions from one half of the hash and 5 from the other.
+    static final int maxHashCount = 15;
+
+    final AtomicLongArray words;
+    final int hashCount;
+
+    public ConcurrentBloomFilter(long expectedInsertions, double falsePositiveProbability)
+    {
+        this(size(expectedInsertions, falsePositiveProbability));
+    }
+
+    ConcurrentBloomFilter(int[] wordsAndHashCount)
+    {
+        this(wordsAndHashCount[0], wordsAndHashCount[1]);
+    }
+
+    ConcurrentBloomFilter(int wordCount, int hashCount)
+    {
+        this(new AtomicLongArray(wordCount), hashCount);
+    }
+
+    // Subclasses that keep their words elsewhere pass null and override word, compareAndSetWord and wordCount.
+    ConcurrentBloomFilter(AtomicLongArray words, int hashCount)
+    {
+        this.words = words;
+        this.hashCount = hashCount;
+    }
+
+    // Adds item and returns true if it was not already present.
+    public boolean putIfAbsent(byte[] item)
+    {
+        HashCode hash = hashFunction.hashBytes(item);
+        int index = wordIndex(hash, wordCount());
+        long mask = mask(hash, hashCount);
+
+        while (true)
+        {
+            long word = word(index);
+            if ((word & mask) == mask)
+            {
+                return false;
+            }
+
+            if (compareAndSetWord(index, word, word | mask))
+            {
+                return true;
+            }
+        }
+    }
+
+    public boolean mightContain(byte[] item)
+    {
+        HashCode hash = hashFunction.hashBytes(item);
+        long mask = mask(hash, hashCount);
+
+        return (word(wordIndex(hash, wordCount())) & mask) == mask;
+    }
+
+    public int wordCount()
+    {
+        return words.length();
+    }
+
+    long word(int index)
+    {
+        return words.get(index);
+    }
+
+    boolean compareAndSetWord(int index, long expect, long update)
+    {
+        return words.compareAndSet(index, expect, update);
+    }
+
+    public int hashCount()
+    {
+        return hashCount;
+    }
+
+    void writeTo(DataOutputStream output) throws IOException
+    {
+        output.writeInt(wordCount());
+        output.writeInt(hashCount);
+        for (int index = 0; index < wordCount(); index++)
+        {
+            output.writeLong(word(index));
+        }
+    }
+
+    static ConcurrentBloomFilter readFrom(DataInputStream input) throws IOException
+    {
+        int wordCount = input.readInt();
+        int hashCount = input.readInt();
+        if (wordCount <= 0 || hashCount <= 0 || hashCount > maxHashCount)
+        {
+            throw new IOException("Corrupt Bloom filter");
+        }
+
+        ConcurrentBloomFilter filter = new ConcurrentBloomFilter(wordCount, hashCount);
+        for (int index = 0; index < wordCount; index++)
+        {
+            filter.words.set(index, input.readLong());
+        }
+
+        return filter;
+    }
+
+    static int wordIndex(HashCode hash, int wordCount)
+    {
+        long h1 = hash.asLong();
+
+        return (int) ((h1 & 0xFFFFFFFFL) % wordCount);
+    }
+
+    static long mask(HashCode hash, int hashCount)
+    {
+        byte[] bytes = hash.asBytes();
+        long h1 = hash.asLong();
+        long h2 = 0;
+        for (int index = 15; index >= 8; index--)
+        {
+            h2 = (h2 << 8) | (bytes[index] & 0xFF);
+        }
+
+        long mask = 0;
+        for (int index = 0; index < hashCount; index++)
+        {
+            // the low half of h1 picks the word, so bit positions come from h2 and then the high half of h1
+            int position = index < 10 ? (int) (h2 >>> (index * 6)) & 63 : (int) (h1 >>> (32 + (index - 10) * 6)) & 63;
+            mask |= 1L << position;
+        }
+
+        return mask;
+    }
+
+    // Returns {word count, hash count} for the smallest filter that keeps expectedInsertions items under the target rate.
+    static int[] size(long expectedInsertions, double falsePositiveProbability)
+    {
+        double bestBitsPerItem = Double.MAX_VALUE;
+        int bestHashCount = 1;
+
+        for (int hashCount = 1; hashCount <= maxHashCount; hashCount++)
+        {
+            // the rate falls as bits per item grow, so search for the smallest that meets the target
+            double low = 1;
+            double high = 1024;
+            if (falsePositiveProbability(high, hashCount) > falsePositiveProbability)
+            {
+                continue;
+            }
+
+            while (high - low > 0.25)
+            {
+                double middle = (low + high) / 2;
+                if (falsePositiveProbability(middle, hashCount) > falsePositiveProbability)
+                {
+                    low = middle;
+                }
+                else
+                {
+                    high = middle;
+                }
+            }
+
+            if (high < bestBitsPerItem)
+            {
+                bestBitsPerItem = high;
+                bestHashCount = hashCount;
+            }
+        }
+
+        long wordCount = (long) Math.ceil(Math.max(1, expectedInsertions) * bestBitsPerItem / 64);
+        if (wordCount > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Bloom filter would be too large");
+        }
+
+        return new int[]{(int) wordCount, bestHashCount};
+    }
+
+    // The false positive rate with bitsPerItem bits per item on average. The number of items landing in each word
+    // follows a Poisson distribution, and a word holding load items answers yes by mistake with the classic Bloom rate.
+    static double falsePositiveProbability(double bitsPerItem, int hashCount)
+    {
+        double itemsPerWord = 64 / bitsPerItem;
+        double probabilityOfLoad = Math.exp(-itemsPerWord);
+        double total = 0;
+        int maxLoad = (int) (itemsPerWord * 4) + 40;
+
+        for (int load = 0; load <= maxLoad; load++)
+        {
+            total += probabilityOfLoad * Math.pow(1 - Math.pow(1 - 1.0 / 64, (double) hashCount * load), hashCount);
+            probabilityOfLoad *= itemsPerWord / (load + 1);
+        }
+
+        return total;
+    }
+}
@@ -3,9 +3,6 @@ package org.operatorfoundation.shapeshifter.shadow.java;
 import android.util.Log;
 
 import org.bouncycastle.jcajce.provider.asymmetric.ec.BCECPublicKey;
-import org.bouncycastle.jce.ECNamedCurveTable;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
-import org.bouncycastle.jce.spec.ECNamedCurveParameterSpec;
 import org.bouncycastle.jce.spec.ECParameterSpec;
 import org.bouncycastle.jce.spec.ECPublicKeySpec;
 import org.bouncycastle.math.ec.ECPoint;
@@ -17,14 +14,12 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
-import java.util.Arrays;
 
 import javax.crypto.KeyAgreement;
 import javax.crypto.SecretKey;
@@ -37,6 +32,7 @@ public class DarkStar
     public SecretKey sharedKeyServerToClient;
     KeyPair clientEphemeralKeyPair;
     PublicKey serverPersistentPublicKey;
+    DarkStarHandshake handshake;
 
     static byte[] darkStarBytes = "DarkStar".getBytes();
     static byte[] clientStringBytes = "client".getBytes();
@@ -44,6 +40,7 @@ public class DarkStar
 
     ShadowConfig shadowConfig;
     String host;
+    InetAddress address;
     int port;
 
     public DarkStar(ShadowConfig config, String host, int port) {
@@ -52,36 +49,42 @@ public class DarkStar
         this.port = port;
     }
 
+    // Uses an address that has already been resolved, so the handshake does no lookups of its own.
+    public DarkStar(ShadowConfig config, InetAddress address, int port) {
+        this.shadowConfig = config;
+        this.host = address.getHostAddress();
+        this.address = address;
+        this.port = port;
+    }
+
     public byte[] createHandshake() throws NoSuchAlgorithmException, InvalidKeySpecException, UnknownHostException
     {
-        // take ServerPersistentPublicKey out of password string
-        byte[] serverPersistentPublicKeyData = hexToBytes(shadowConfig.password);
-        this.serverPersistentPublicKey = bytesToPublicKey(serverPersistentPublicKeyData);
+        // the config decodes ServerPersistentPublicKey from the password string once and keeps it
+        this.serverPersistentPublicKey = shadowConfig.serverPersistentPublicKey();
 
-        // generate an ephemeral keypair
-        this.clientEphemeralKeyPair = generateECKeys();
-
-        // get the client ephemeral private and public keys from the key pair
-        PrivateKey clientEphemeralPrivateKey = null;
-        PublicKey clientEphemeralPublicKey = null;
-
-        if (this.clientEphemeralKeyPair != null)
+        // take a pre-generated ephemeral keypair if the pool is enabled, otherwise generate one
+        this.clientEphemeralKeyPair = EphemeralKeyPool.nextKeyPair();
+        if (this.clientEphemeralKeyPair == null)
         {
-            clientEphemeralPrivateKey = this.clientEphemeralKeyPair.getPrivate();
-            clientEphemeralPublicKey = this.clientEphemeralKeyPair.getPublic();
+            throw new NoSuchAlgorithmException();
         }
 
-        // convert the ephemeral public key into data and save it to the handshakeData array.
-        byte[] handshakeData = publicKeyToBytes(clientEphemeralPublicKey);
+        try
+        {
+            if (address == null)
+            {
+                address = HostResolver.resolve(host);
+            }
 
-        // Generate client confirmation code
-        byte[] clientConfirmationCode = generateClientConfirmationCode(host, port, serverPersistentPublicKey, clientEphemeralPublicKey, clientEphemeralPrivateKey);
+            this.handshake = new DarkStarHandshake(address, port, serverPersistentPublicKey, shadowConfig.serverPersistentPublicKeyData(), clientEphemeralKeyPair);
+        }
+        catch (InvalidKeyException error)
+        {
+            throw new InvalidKeySpecException(error);
+        }
 
-        // add the clientConfirmationCode to the handshake array.
         // handshakeData is clientEphemeralPublicKey data plus the clientConfirmationCode.
-        handshakeData = Utility.plusEqualsByteArray(handshakeData, clientConfirmationCode);
-
-        return handshakeData;
+        return handshake.clientHandshake();
     }
 
     public void splitHandshake(byte[] handshakeData, byte[] ephemeralPublicKeyBuf, byte[] confirmationCodeBuf)
@@ -95,63 +98,21 @@ public class DarkStar
         System.arraycopy(handshakeData, 32, confirmationCodeBuf, 0, 32);
     }
 
+    // The server's handshake is checked and both keys are derived on the first call, so making the second cipher is cheap.
     public ShadowCipher makeCipher(boolean isClientToServer, byte[] handshakeBytes) throws InvalidKeySpecException, NoSuchAlgorithmException, UnknownHostException, InvalidKeyException
     {
-        byte[] serverEphemeralPublicKeyData = new byte[32];
-        byte[] serverConfirmationCode = new byte[32];
-        splitHandshake(handshakeBytes, serverEphemeralPublicKeyData, serverConfirmationCode);
-
-        // turn the server's public key data back to a public key type
-        PublicKey serverEphemeralPublicKey = bytesToPublicKey(serverEphemeralPublicKeyData);
-
-        // derive shared keys
-        SecretKey sharedKey = generateSharedKey(
-                isClientToServer,
-                host,
-                port,
-                clientEphemeralKeyPair,
-                serverEphemeralPublicKey,
-                serverPersistentPublicKey);
-
-        if (isClientToServer)
-        {
-            sharedKeyClientToServer = sharedKey;
-        }
-        else
-        {
-            sharedKeyServerToClient = sharedKey;
-        }
+        handshake.receive(handshakeBytes);
+        sharedKeyClientToServer = handshake.sharedKeyClientToServer;
+        sharedKeyServerToClient = handshake.sharedKeyServerToClient;
 
-        // check confirmationCode
-        byte[] clientCopyServerConfirmationCode = generateServerConfirmationCode(
-                host,
-                port,
-                clientEphemeralKeyPair.getPublic(),
-                clientEphemeralKeyPair.getPrivate(),
-                serverPersistentPublicKey);
-        if (!Arrays.equals(clientCopyServerConfirmationCode, serverConfirmationCode))
-        {
-            throw new InvalidKeyException();
-        }
-
-        if (isClientToServer)
-        {
-            return new ShadowDarkStarCipher(sharedKeyClientToServer);
-        }
-        else
-        {
-            return new ShadowDarkStarCipher(sharedKeyServerToClient);
-        }
+        return new ShadowDarkStarCipher(handshake.sharedKey(isClientToServer));
     }
 
     public static KeyPair generateECKeys()
     {
         try
         {
-            ECNamedCurveParameterSpec parameterSpec = ECNamedCurveTable.getParameterSpec("secp256r1");
-            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC", new BouncyCastleProvider());
-            keyPairGenerator.initialize(parameterSpec);
-            return keyPairGenerator.generateKeyPair();
+            return DarkStarCrypto.keyPairGenerator().generateKeyPair();
         }
         catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException e)
         {
@@ -163,7 +124,7 @@ public class DarkStar
     public static KeyPair loadECKeys(String privateKeyString, String publicKeyString)
     {
         try {
-            KeyFactory keyFactory = KeyFactory.getInstance("EC", new BouncyCastleProvider());
+            KeyFactory keyFactory = DarkStarCrypto.keyFactory();
 
             byte[] privateKeyBytes = hexToBytes(privateKeyString);
             PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(privateKeyBytes);
@@ -183,7 +144,7 @@ public class DarkStar
     {
         try
         {
-            KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH", new BouncyCastleProvider());
+            KeyAgreement keyAgreement = DarkStarCrypto.keyAgreement();
             keyAgreement.init(privateKey);
             keyAgreement.doPhase(publicKey, true);
             return keyAgreement.generateSecret("secp256r1");
@@ -200,7 +161,14 @@ public class DarkStar
         SecretKey ecdh1 = DarkStar.generateSharedSecret(clientEphemeral.getPrivate(), serverEphemeralPublicKey);
         SecretKey ecdh2 = DarkStar.generateSharedSecret(clientEphemeral.getPrivate(), serverPersistentPublicKey);
         byte[] serverIdentifier = DarkStar.makeServerIdentifier(host, port);
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+        return sharedKey(isClientToServer, ecdh1, ecdh2, serverIdentifier, publicKeyToBytes(clientEphemeral.getPublic()), publicKeyToBytes(serverEphemeralPublicKey));
+    }
+
+    // Derives one directional key from ECDH results that have already been computed.
+    static SecretKey sharedKey(boolean isClientToServer, SecretKey ecdh1, SecretKey ecdh2, byte[] serverIdentifier, byte[] clientEphemeralPublicKeyData, byte[] serverEphemeralPublicKeyData) throws NoSuchAlgorithmException
+    {
+        MessageDigest digest = DarkStarCrypto.sha256();
 
         if (ecdh1 != null)
         {
@@ -213,8 +181,8 @@ public class DarkStar
         }
 
         digest.update(serverIdentifier);
-        digest.update(publicKeyToBytes(clientEphemeral.getPublic()));
-        digest.update(publicKeyToBytes(serverEphemeralPublicKey));
+        digest.update(clientEphemeralPublicKeyData);
+        digest.update(serverEphemeralPublicKeyData);
         digest.update(darkStarBytes);
 
         if (isClientToServer)
@@ -232,7 +200,11 @@ public class DarkStar
 
     public static byte[] makeServerIdentifier(String host, int port) throws UnknownHostException
     {
-        InetAddress ip = InetAddress.getByName(host);
+        return makeServerIdentifier(HostResolver.resolve(host), port);
+    }
+
+    public static byte[] makeServerIdentifier(InetAddress ip, int port)
+    {
         byte[] address = ip.getAddress();
         ByteBuffer buf = ByteBuffer.allocate(2);
         buf.putShort((short) port);
@@ -243,33 +215,22 @@ public class DarkStar
 
     public static byte[] generateServerConfirmationCode(String host, int port, PublicKey clientEphemeralPublicKey, PrivateKey clientEphemeralPrivateKey, PublicKey serverPersistentPublicKey) throws NoSuchAlgorithmException, UnknownHostException
     {
-        byte[] serverIdentifier = makeServerIdentifier(host, port);
-        byte[] serverPersistentPublicKeyData = publicKeyToBytes(serverPersistentPublicKey);
-        byte[] clientEphemeralPublicKeyData = publicKeyToBytes(clientEphemeralPublicKey);
         SecretKey sharedSecret = generateSharedSecret(clientEphemeralPrivateKey, serverPersistentPublicKey);
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
 
-        if (sharedSecret != null)
-        {
-            digest.update(sharedSecret.getEncoded());
-        }
-
-        digest.update(serverIdentifier);
-        digest.update(serverPersistentPublicKeyData);
-        digest.update(clientEphemeralPublicKeyData);
-        digest.update(darkStarBytes);
-        digest.update(serverStringBytes);
-
-        return digest.digest();
+        return confirmationCode(sharedSecret, makeServerIdentifier(host, port), publicKeyToBytes(serverPersistentPublicKey), publicKeyToBytes(clientEphemeralPublicKey), serverStringBytes);
     }
 
     public static byte[] generateClientConfirmationCode(String host, int port, PublicKey serverPersistentPublicKey, PublicKey clientEphemeralPublicKey, PrivateKey clientEphemeralPrivateKey) throws NoSuchAlgorithmException, UnknownHostException
     {
         SecretKey sharedSecret = DarkStar.generateSharedSecret(clientEphemeralPrivateKey, serverPersistentPublicKey);
-        byte[] serverIdentifier = makeServerIdentifier(host, port);
-        byte[] serverPersistentPublicKeyData = publicKeyToBytes(serverPersistentPublicKey);
-        byte[] clientEphemeralPublicKeyData = publicKeyToBytes(clientEphemeralPublicKey);
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+        return confirmationCode(sharedSecret, makeServerIdentifier(host, port), publicKeyToBytes(serverPersistentPublicKey), publicKeyToBytes(clientEphemeralPublicKey), clientStringBytes);
+    }
+
+    // Computes a confirmation code from an ECDH result that has already been computed. The role is clientStringBytes or serverStringBytes.
+    static byte[] confirmationCode(SecretKey sharedSecret, byte[] serverIdentifier, byte[] serverPersistentPublicKeyData, byte[] clientEphemeralPublicKeyData, byte[] role) throws NoSuchAlgorithmException
+    {
+        MessageDigest digest = DarkStarCrypto.sha256();
 
         if (sharedSecret != null)
         {
@@ -280,7 +241,7 @@ public class DarkStar
         digest.update(serverPersistentPublicKeyData);
         digest.update(clientEphemeralPublicKeyData);
         digest.update(darkStarBytes);
-        digest.update(clientStringBytes);
+        digest.update(role);
 
         return digest.digest();
     }
@@ -295,8 +256,8 @@ public class DarkStar
     }
 
     public static PublicKey bytesToPublicKey(byte[] bytes) throws NoSuchAlgorithmException, InvalidKeySpecException {
-        KeyFactory keyFactory = KeyFactory.getInstance("EC", new BouncyCastleProvider());
-        ECParameterSpec ecSpec = ECNamedCurveTable.getParameterSpec("secp256r1");
+        KeyFactory keyFactory = DarkStarCrypto.keyFactory();
+        ECParameterSpec ecSpec = DarkStarCrypto.curve;
         byte[] encodedPoint = new byte[33];
         System.arraycopy(bytes, 0, encodedPoint, 1, 32);
         encodedPoint[0] = 3;
@@ -0,0 +1,88 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.jce.spec.ECNamedCurveParameterSpec;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+
+import javax.crypto.KeyAgreement;
+
+// DarkStarCrypto shares one BouncyCastleProvider between all DarkStar code and keeps one instance of each JCA
+// primitive per thread. These objects are not thread safe, but they can be reused once they are initialized again,
+// so each thread pays for provider lookup only on its first handshake.
+final class DarkStarCrypto
+{
+    static final Provider provider = new BouncyCastleProvider();
+    static final ECNamedCurveParameterSpec curve = ECNamedCurveTable.getParameterSpec("secp256r1");
+
+    static final ThreadLocal<KeyAgreement> keyAgreements = new ThreadLocal<>();
+    static final ThreadLocal<KeyFactory> keyFactories = new ThreadLocal<>();
+    static final ThreadLocal<KeyPairGenerator> keyPairGenerators = new ThreadLocal<>();
+    static final ThreadLocal<MessageDigest> digests = new ThreadLocal<>();
+
+    private DarkStarCrypto()
+    {
+    }
+
+    // Returns this thread's ECDH KeyAgreement. Call init before each use.
+    static KeyAgreement keyAgreement() throws NoSuchAlgorithmException
+    {
+        KeyAgreement keyAgreement = keyAgreements.get();
+        if (keyAgreement == null)
+        {
+            keyAgreement = KeyAgreement.getInstance("ECDH", provider);
+            keyAgreements.set(keyAgreement);
+        }
+
+        return keyAgreement;
+    }
+
+    static KeyFactory keyFactory() throws NoSuchAlgorithmException
+    {
+        KeyFactory keyFactory = keyFactories.get();
+        if (keyFactory == null)
+        {
+            keyFactory = KeyFactory.getInstance("EC", provider);
+            keyFactories.set(keyFactory);
+        }
+
+        return keyFactory;
+    }
+
+    // Returns this thread's P-256 KeyPairGenerator, already initialized.
+    static KeyPairGenerator keyPairGenerator() throws NoSuchAlgorithmException, InvalidAlgorithmParameterException
+    {
+        KeyPairGenerator keyPairGenerator = keyPairGenerators.get();
+        if (keyPairGenerator == null)
+        {
+            keyPairGenerator = KeyPairGenerator.getInstance("EC", provider);
+            keyPairGenerator.initialize(curve);
+            keyPairGenerators.set(keyPairGenerator);
+        }
+
+        return keyPairGenerator;
+    }
+
+    // Returns this thread's SHA-256 digest, reset and ready for use.
+    static MessageDigest sha256() throws NoSuchAlgorithmException
+    {
+        MessageDigest digest = digests.get();
+        if (digest == null)
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+            digests.set(digest);
+        }
+        else
+        {
+            digest.reset();
+        }
+
+        return digest;
+    }
+}
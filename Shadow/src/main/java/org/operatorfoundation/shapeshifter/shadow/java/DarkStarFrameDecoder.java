@@ -0,0 +1,168 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import javax.crypto.ShortBufferException;
+
+// DarkStarFrameDecoder turns encrypted bytes, delivered in chunks of any size, back into whole decrypted frames.
+// It remembers a half-read length header or payload between calls, so it can be fed from a selector loop,
+// an event loop or a test without a thread blocking on each connection.
+public class DarkStarFrameDecoder
+{
+    // Called once for each decrypted frame. The buffer holds the plaintext and is only valid during the call.
+    public interface FrameListener
+    {
+        void onFrame(ByteBuffer plaintext) throws IOException;
+    }
+
+    final ShadowCipher cipher;
+
+    // Encrypted bytes received but not decoded yet, kept in read mode.
+    ByteBuffer buffer;
+
+    // The decrypted length of the next frame once its header has been parsed, or -1 while the header is still unread.
+    int pendingPayloadLength = -1;
+
+    // Plaintext handed to a FrameListener.
+    ByteBuffer frame;
+
+    public DarkStarFrameDecoder(ShadowCipher cipher)
+    {
+        this(cipher, ShadowCipher.packedSize(ShadowCipher.maxPayloadSize));
+    }
+
+    public DarkStarFrameDecoder(ShadowCipher cipher, int bufferSize)
+    {
+        this.cipher = cipher;
+        this.buffer = ByteBuffer.allocate(Math.max(bufferSize, ShadowCipher.lengthWithTagSize));
+        this.buffer.flip();
+    }
+
+    // Copies the remaining bytes of chunk into the decoder, growing it if needed.
+    public void feed(ByteBuffer chunk)
+    {
+        ensureSpace(chunk.remaining());
+        buffer.compact();
+        buffer.put(chunk);
+        buffer.flip();
+    }
+
+    // Feeds chunk and hands every frame it completes to listener. Returns the number of frames decoded.
+    public int decode(ByteBuffer chunk, FrameListener listener) throws Exception
+    {
+        feed(chunk);
+
+        int frames = 0;
+        while (true)
+        {
+            int payloadLength = nextFrameLength();
+            if (payloadLength == -1)
+            {
+                return frames;
+            }
+
+            if (frame == null || frame.capacity() < payloadLength)
+            {
+                frame = ByteBuffer.allocate(Math.max(payloadLength, ShadowCipher.maxPayloadSize));
+            }
+
+            frame.clear();
+            decodeFrame(frame);
+            frame.flip();
+            listener.onFrame(frame);
+            frames++;
+        }
+    }
+
+    // Reads whatever the channel has straight into the decoder. Returns the channel's result.
+    public int readFrom(ReadableByteChannel channel) throws IOException
+    {
+        int needed = pendingPayloadLength == -1 ? ShadowCipher.lengthWithTagSize : pendingPayloadLength + ShadowCipher.tagSize;
+        ensureSpace(needed - buffer.remaining());
+
+        buffer.compact();
+        try
+        {
+            return channel.read(buffer);
+        }
+        finally
+        {
+            buffer.flip();
+        }
+    }
+
+    // Returns the payload length of the next frame if all of it has arrived, or -1 otherwise.
+    // The length header is decrypted as soon as it is complete.
+    public int nextFrameLength() throws Exception
+    {
+        if (pendingPayloadLength == -1)
+        {
+            if (buffer.remaining() < ShadowCipher.lengthWithTagSize)
+            {
+                return -1;
+            }
+
+            pendingPayloadLength = cipher.unpackLength(buffer);
+        }
+
+        if (buffer.remaining() < pendingPayloadLength + ShadowCipher.tagSize)
+        {
+            return -1;
+        }
+
+        return pendingPayloadLength;
+    }
+
+    // Decrypts the next frame into output, which must have room for nextFrameLength() bytes.
+    // Returns the payload length, or -1 if the frame has not fully arrived.
+    // If output is too small this throws ShortBufferException and keeps the frame, so it can be decoded again.
+    public int decodeFrame(ByteBuffer output) throws Exception
+    {
+        int payloadLength = nextFrameLength();
+        if (payloadLength == -1)
+        {
+            return -1;
+        }
+
+        if (output.remaining() < payloadLength)
+        {
+            throw new ShortBufferException();
+        }
+
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + payloadLength + ShadowCipher.tagSize);
+        try
+        {
+            int decrypted = cipher.decrypt(buffer, output);
+            pendingPayloadLength = -1;
+            return decrypted;
+        }
+        finally
+        {
+            buffer.limit(limit);
+        }
+    }
+
+    // Returns the number of encrypted bytes held that do not belong to a parsed header.
+    public int buffered()
+    {
+        return buffer.remaining();
+    }
+
+    // Makes sure extra more bytes fit after the ones already held.
+    void ensureSpace(int extra)
+    {
+        int needed = buffer.remaining() + extra;
+        if (needed <= buffer.capacity())
+        {
+            return;
+        }
+
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(needed, buffer.capacity() * 2));
+        larger.put(buffer);
+        larger.flip();
+        buffer = larger;
+    }
+}
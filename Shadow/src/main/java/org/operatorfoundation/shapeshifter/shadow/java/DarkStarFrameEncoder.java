@@ -0,0 +1,64 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+import java.nio.ByteBuffer;
+
+// DarkStarFrameEncoder seals plaintext into DarkStar frames, writing them into buffers the caller owns.
+// It is the counterpart to DarkStarFrameDecoder for code that does its own network I/O.
+public class DarkStarFrameEncoder
+{
+    final ShadowCipher cipher;
+
+    public DarkStarFrameEncoder(ShadowCipher cipher)
+    {
+        this.cipher = cipher;
+    }
+
+    // Returns the number of bytes encode produces for plaintextLength bytes of plaintext.
+    public static int encodedSize(int plaintextLength)
+    {
+        int frames = (plaintextLength + ShadowCipher.maxPayloadSize - 1) / ShadowCipher.maxPayloadSize;
+
+        return plaintextLength + frames * (ShadowCipher.lengthWithTagSize + ShadowCipher.tagSize);
+    }
+
+    // Seals as many frames from plaintext as fit in output. Frames are never split across calls.
+    // Returns the number of plaintext bytes consumed.
+    public int encode(ByteBuffer plaintext, ByteBuffer output) throws Exception
+    {
+        int consumed = 0;
+
+        while (plaintext.hasRemaining())
+        {
+            int payloadLength = Math.min(plaintext.remaining(), ShadowCipher.maxPayloadSize);
+            if (output.remaining() < ShadowCipher.packedSize(payloadLength))
+            {
+                break;
+            }
+
+            int limit = plaintext.limit();
+            plaintext.limit(plaintext.position() + payloadLength);
+            try
+            {
+                cipher.pack(plaintext, output);
+            }
+            finally
+            {
+                plaintext.limit(limit);
+            }
+
+            consumed += payloadLength;
+        }
+
+        return consumed;
+    }
+
+    // Seals all of plaintext into a new buffer, ready for reading.
+    public ByteBuffer encode(ByteBuffer plaintext) throws Exception
+    {
+        ByteBuffer output = ByteBuffer.allocate(encodedSize(plaintext.remaining()));
+        encode(plaintext, output);
+        output.flip();
+
+        return output;
+    }
+}
@@ -0,0 +1,103 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+
+// DarkStarHandshake holds the state of one client handshake. Each ECDH result, the server identifier and the
+// confirmation codes are computed once here, and both directional keys are derived from them together.
+public class DarkStarHandshake
+{
+    final byte[] serverIdentifier;
+    final PublicKey serverPersistentPublicKey;
+    final byte[] serverPersistentPublicKeyData;
+    final KeyPair clientEphemeralKeyPair;
+    final byte[] clientEphemeralPublicKeyData;
+
+    // ECDH between the client ephemeral key and the server persistent key, shared by the confirmation codes and both keys.
+    final SecretKey persistentSecret;
+
+    byte[] serverHandshake;
+    SecretKey sharedKeyClientToServer;
+    SecretKey sharedKeyServerToClient;
+
+    public DarkStarHandshake(String host, int port, PublicKey serverPersistentPublicKey, KeyPair clientEphemeralKeyPair) throws UnknownHostException, InvalidKeyException
+    {
+        this(HostResolver.resolve(host), port, serverPersistentPublicKey, DarkStar.publicKeyToBytes(serverPersistentPublicKey), clientEphemeralKeyPair);
+    }
+
+    // Takes the resolved server address and the encoded server key, for callers that already have them.
+    DarkStarHandshake(InetAddress address, int port, PublicKey serverPersistentPublicKey, byte[] serverPersistentPublicKeyData, KeyPair clientEphemeralKeyPair) throws InvalidKeyException
+    {
+        this.serverIdentifier = DarkStar.makeServerIdentifier(address, port);
+        this.serverPersistentPublicKey = serverPersistentPublicKey;
+        this.serverPersistentPublicKeyData = serverPersistentPublicKeyData;
+        this.clientEphemeralKeyPair = clientEphemeralKeyPair;
+        this.clientEphemeralPublicKeyData = DarkStar.publicKeyToBytes(clientEphemeralKeyPair.getPublic());
+        this.persistentSecret = DarkStar.generateSharedSecret(clientEphemeralKeyPair.getPrivate(), serverPersistentPublicKey);
+
+        if (persistentSecret == null)
+        {
+            throw new InvalidKeyException();
+        }
+    }
+
+    // Returns the 64 bytes the client sends: its ephemeral public key followed by the client confirmation code.
+    public byte[] clientHandshake() throws NoSuchAlgorithmException
+    {
+        byte[] clientConfirmationCode = DarkStar.confirmationCode(persistentSecret, serverIdentifier, serverPersistentPublicKeyData, clientEphemeralPublicKeyData, DarkStar.clientStringBytes);
+
+        return Utility.plusEqualsByteArray(clientEphemeralPublicKeyData, clientConfirmationCode);
+    }
+
+    // Checks the server's handshake and derives both directional keys from it.
+    // Calling this again with the same bytes does nothing.
+    public void receive(byte[] handshakeBytes) throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException
+    {
+        if (serverHandshake != null && Arrays.equals(serverHandshake, handshakeBytes))
+        {
+            return;
+        }
+
+        byte[] serverEphemeralPublicKeyData = new byte[32];
+        byte[] serverConfirmationCode = new byte[32];
+        if (handshakeBytes.length != ShadowCipher.handshakeSize)
+        {
+            throw new InvalidKeyException();
+        }
+
+        System.arraycopy(handshakeBytes, 0, serverEphemeralPublicKeyData, 0, 32);
+        System.arraycopy(handshakeBytes, 32, serverConfirmationCode, 0, 32);
+
+        // check confirmationCode
+        byte[] clientCopyServerConfirmationCode = DarkStar.confirmationCode(persistentSecret, serverIdentifier, serverPersistentPublicKeyData, clientEphemeralPublicKeyData, DarkStar.serverStringBytes);
+        if (!Arrays.equals(clientCopyServerConfirmationCode, serverConfirmationCode))
+        {
+            throw new InvalidKeyException();
+        }
+
+        // turn the server's public key data back to a public key type
+        PublicKey serverEphemeralPublicKey = DarkStar.bytesToPublicKey(serverEphemeralPublicKeyData);
+        SecretKey ephemeralSecret = DarkStar.generateSharedSecret(clientEphemeralKeyPair.getPrivate(), serverEphemeralPublicKey);
+        if (ephemeralSecret == null)
+        {
+            throw new InvalidKeyException();
+        }
+
+        this.sharedKeyClientToServer = DarkStar.sharedKey(true, ephemeralSecret, persistentSecret, serverIdentifier, clientEphemeralPublicKeyData, serverEphemeralPublicKeyData);
+        this.sharedKeyServerToClient = DarkStar.sharedKey(false, ephemeralSecret, persistentSecret, serverIdentifier, clientEphemeralPublicKeyData, serverEphemeralPublicKeyData);
+        this.serverHandshake = handshakeBytes.clone();
+    }
+
+    public SecretKey sharedKey(boolean isClientToServer)
+    {
+        return isClientToServer ? sharedKeyClientToServer : sharedKeyServerToClient;
+    }
+}
@@ -0,0 +1,214 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// EndpointSelector picks which configured Shadow server new sockets go to. Healthy servers are tried fastest first,
+// measured by how long connect plus handshake took, and a failed dial moves on to the next server and benches the
+// one that failed for a while. All servers are probed once in the background when the first socket is dialed,
+// and again periodically if startProbing is called.
+public class EndpointSelector
+{
+    final List<ShadowEndpoint> endpoints;
+    final AtomicBoolean probed = new AtomicBoolean();
+    ScheduledExecutorService prober;
+
+    public EndpointSelector(List<ShadowEndpoint> endpoints)
+    {
+        if (endpoints.isEmpty())
+        {
+            throw new IllegalArgumentException("at least one endpoint is required");
+        }
+
+        this.endpoints = Collections.unmodifiableList(new ArrayList<>(endpoints));
+    }
+
+    public List<ShadowEndpoint> getEndpoints()
+    {
+        return endpoints;
+    }
+
+    // Returns the endpoints in the order they should be tried: healthy before benched, then fastest first.
+    // Endpoints that have not been measured keep their configured order, after the measured ones.
+    public List<ShadowEndpoint> ranked()
+    {
+        // Probes and dials update the endpoints while we sort, so sort a snapshot to keep the order consistent.
+        long now = System.currentTimeMillis();
+        List<Rank> ranks = new ArrayList<>(endpoints.size());
+        for (ShadowEndpoint endpoint : endpoints)
+        {
+            ranks.add(new Rank(endpoint, endpoint.isHealthy(now), endpoint.smoothedHandshakeNanos()));
+        }
+
+        Collections.sort(ranks, new Comparator<Rank>()
+        {
+            @Override
+            public int compare(Rank first, Rank second)
+            {
+                if (first.healthy != second.healthy)
+                {
+                    return first.healthy ? -1 : 1;
+                }
+
+                if (first.nanos < 0 || second.nanos < 0)
+                {
+                    return first.nanos < 0 ? (second.nanos < 0 ? 0 : 1) : -1;
+                }
+
+                return first.nanos < second.nanos ? -1 : (first.nanos == second.nanos ? 0 : 1);
+            }
+        });
+
+        List<ShadowEndpoint> ranked = new ArrayList<>(ranks.size());
+        for (Rank rank : ranks)
+        {
+            ranked.add(rank.endpoint);
+        }
+
+        return ranked;
+    }
+
+    // One endpoint's health and latency as they were when ranking started.
+    static class Rank
+    {
+        final ShadowEndpoint endpoint;
+        final boolean healthy;
+        final long nanos;
+
+        Rank(ShadowEndpoint endpoint, boolean healthy, long nanos)
+        {
+            this.endpoint = endpoint;
+            this.healthy = healthy;
+            this.nanos = nanos;
+        }
+    }
+
+    // Returns the endpoint new sockets should use right now.
+    public ShadowEndpoint select()
+    {
+        return ranked().get(0);
+    }
+
+    // Dials the best endpoint, falling over to the others in order if it fails. Throws the last error if all of them fail.
+    public ShadowSocket dial() throws IOException
+    {
+        if (endpoints.size() > 1 && probed.compareAndSet(false, true))
+        {
+            probeInBackground();
+        }
+
+        IOException lastError = null;
+        for (ShadowEndpoint endpoint : ranked())
+        {
+            try
+            {
+                return dial(endpoint);
+            }
+            catch (IOException dialError)
+            {
+                Log.e("EndpointSelector", "Failed to dial " + endpoint + ", trying the next server.");
+                lastError = dialError;
+            }
+        }
+
+        throw lastError;
+    }
+
+    // Dials one endpoint and records how it went.
+    ShadowSocket dial(ShadowEndpoint endpoint) throws IOException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            ShadowSocket socket = new ShadowSocket(endpoint.shadowConfig, endpoint.host, endpoint.port);
+            endpoint.recordSuccess(System.nanoTime() - start);
+            return socket;
+        }
+        catch (IOException dialError)
+        {
+            endpoint.recordFailure(System.currentTimeMillis());
+            throw dialError;
+        }
+        catch (Exception dialError)
+        {
+            endpoint.recordFailure(System.currentTimeMillis());
+            dialError.printStackTrace();
+            throw new IOException();
+        }
+    }
+
+    // Dials every endpoint once to measure it, closing the sockets straight away.
+    public void probe()
+    {
+        for (ShadowEndpoint endpoint : endpoints)
+        {
+            try
+            {
+                dial(endpoint).close();
+            }
+            catch (IOException probeError)
+            {
+                Log.e("EndpointSelector", "Probe of " + endpoint + " failed.");
+            }
+        }
+    }
+
+    // Probes every endpoint now and then every intervalMillis on a background thread.
+    public synchronized void startProbing(long intervalMillis)
+    {
+        stopProbing();
+        probed.set(true);
+        prober = Executors.newSingleThreadScheduledExecutor(daemonThreads);
+        prober.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                probe();
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopProbing()
+    {
+        if (prober != null)
+        {
+            prober.shutdownNow();
+            prober = null;
+        }
+    }
+
+    void probeInBackground()
+    {
+        Thread probeThread = daemonThreads.newThread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                probe();
+            }
+        });
+        probeThread.start();
+    }
+
+    static final ThreadFactory daemonThreads = new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "EndpointSelector");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+}
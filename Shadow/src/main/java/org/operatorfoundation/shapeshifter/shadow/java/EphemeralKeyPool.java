@@ -0,0 +1,161 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+import android.util.Log;
+
+import java.security.KeyPair;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// EphemeralKeyPool keeps P-256 key pairs generated ahead of time by a low priority background thread,
+// so a handshake does not have to wait for key generation. Each key pair is handed out once and never returned.
+// When the pool is empty the caller generates a key pair itself.
+public class EphemeralKeyPool
+{
+    static volatile EphemeralKeyPool shared;
+
+    final int depth;
+    final LinkedBlockingQueue<KeyPair> keyPairs;
+    final Thread refillThread;
+    volatile boolean running = true;
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+
+    public EphemeralKeyPool(int depth)
+    {
+        if (depth < 1)
+        {
+            throw new IllegalArgumentException("depth must be at least 1");
+        }
+
+        this.depth = depth;
+        this.keyPairs = new LinkedBlockingQueue<>(depth);
+        this.refillThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                refill();
+            }
+        }, "EphemeralKeyPool");
+        this.refillThread.setDaemon(true);
+        this.refillThread.setPriority(Thread.MIN_PRIORITY);
+        this.refillThread.start();
+    }
+
+    // Starts a shared pool that DarkStar takes its ephemeral keys from, replacing any earlier one.
+    public static void enable(int depth)
+    {
+        EphemeralKeyPool previous = shared;
+        shared = new EphemeralKeyPool(depth);
+        if (previous != null)
+        {
+            previous.stop();
+        }
+    }
+
+    // Stops the shared pool. Handshakes go back to generating their keys inline.
+    public static void disable()
+    {
+        EphemeralKeyPool previous = shared;
+        shared = null;
+        if (previous != null)
+        {
+            previous.stop();
+        }
+    }
+
+    // Returns a fresh key pair from the shared pool if there is one, or generates it inline.
+    static KeyPair nextKeyPair()
+    {
+        EphemeralKeyPool pool = shared;
+        if (pool == null)
+        {
+            return DarkStar.generateECKeys();
+        }
+
+        return pool.take();
+    }
+
+    // Removes a key pair from the pool, or generates one inline if the pool is empty.
+    public KeyPair take()
+    {
+        KeyPair keyPair = keyPairs.poll();
+        if (keyPair != null)
+        {
+            hits.incrementAndGet();
+        }
+        else
+        {
+            misses.incrementAndGet();
+            keyPair = DarkStar.generateECKeys();
+        }
+
+        synchronized (this)
+        {
+            notifyAll();
+        }
+
+        return keyPair;
+    }
+
+    public int size()
+    {
+        return keyPairs.size();
+    }
+
+    public long hitCount()
+    {
+        return hits.get();
+    }
+
+    public long missCount()
+    {
+        return misses.get();
+    }
+
+    // Stops the refill thread and drops the key pairs that were not used.
+    public void stop()
+    {
+        running = false;
+        refillThread.interrupt();
+        keyPairs.clear();
+    }
+
+    void refill()
+    {
+        while (running)
+        {
+            try
+            {
+                synchronized (this)
+                {
+                    while (running && keyPairs.size() >= depth)
+                    {
+                        wait();
+                    }
+                }
+
+                if (!running)
+                {
+                    break;
+                }
+
+                KeyPair keyPair = DarkStar.generateECKeys();
+                if (keyPair == null)
+                {
+                    Log.e("EphemeralKeyPool", "Key generation failed, stopping the refill thread.");
+                    break;
+                }
+
+                keyPairs.offer(keyPair);
+            }
+            catch (InterruptedException stopped)
+            {
+                break;
+            }
+        }
+
+        keyPairs.clear();
+    }
+}
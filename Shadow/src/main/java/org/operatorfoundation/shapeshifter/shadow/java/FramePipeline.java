@@ -0,0 +1,290 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// FramePipeline moves a ShadowInputStream's network reads and payload decryption onto two background threads.
+// The network thread parses length headers in order and reserves each payload's nonce from the stream's cipher,
+// then hands the still encrypted payload to the decrypt thread, which uses its own forked cipher.
+// The application thread only copies out plaintext that is already decrypted.
+class FramePipeline
+{
+    static class Frame
+    {
+        byte[] data = new byte[ShadowCipher.maxPayloadSize + ShadowCipher.tagSize];
+        ByteBuffer dataBuffer = ByteBuffer.wrap(data);
+        int start = 0;
+        int end = 0;
+        long nonce;
+        boolean endOfStream = false;
+        Exception error;
+
+        // Makes room for an encrypted payload of the given size and clears the previous frame's state.
+        void prepare(int encryptedPayloadSize)
+        {
+            if (encryptedPayloadSize > data.length)
+            {
+                data = new byte[encryptedPayloadSize];
+                dataBuffer = ByteBuffer.wrap(data);
+            }
+
+            start = 0;
+            end = encryptedPayloadSize;
+            endOfStream = false;
+            error = null;
+        }
+    }
+
+    // How long stop waits for the network thread to let go of the stream's read-ahead buffer.
+    static final long joinTimeoutMillis = 5000;
+
+    final ShadowInputStream input;
+    final int queueDepth;
+    final ShadowCipher payloadCipher;
+    final BlockingQueue<Frame> encryptedFrames;
+    final BlockingQueue<Frame> decryptedFrames;
+    final BlockingQueue<Frame> freeFrames;
+    final Thread networkThread;
+    final Thread decryptThread;
+    volatile boolean running = true;
+
+    // The frame the application is currently reading from.
+    Frame current;
+
+    FramePipeline(ShadowInputStream input, int queueDepth) throws Exception
+    {
+        this.input = input;
+        this.queueDepth = queueDepth;
+        this.payloadCipher = input.decryptionCipher.fork();
+        this.encryptedFrames = new ArrayBlockingQueue<>(queueDepth);
+        this.decryptedFrames = new ArrayBlockingQueue<>(queueDepth);
+        this.freeFrames = new ArrayBlockingQueue<>(queueDepth * 2 + 2);
+
+        this.networkThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                readFrames();
+            }
+        }, "ShadowInputStream network");
+
+        this.decryptThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                decryptFrames();
+            }
+        }, "ShadowInputStream decrypt");
+
+        networkThread.setDaemon(true);
+        decryptThread.setDaemon(true);
+    }
+
+    void start()
+    {
+        networkThread.start();
+        decryptThread.start();
+    }
+
+    // Stops both threads and wakes any reader waiting for a frame. Reads after this throw.
+    void stop()
+    {
+        running = false;
+        networkThread.interrupt();
+        decryptThread.interrupt();
+
+        // if the queue is full there is nothing to wake, and read notices running is false after its next take
+        decryptedFrames.offer(new Frame());
+    }
+
+    // Waits for the network thread to finish, so the stream's read-ahead state can be reused. Call after stop.
+    void join() throws IOException
+    {
+        try
+        {
+            networkThread.join(joinTimeoutMillis);
+        }
+        catch (InterruptedException interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        if (networkThread.isAlive())
+        {
+            Log.e("FramePipeline", "The network thread did not stop.");
+            throw new IOException();
+        }
+    }
+
+    // Runs on the network thread.
+    void readFrames()
+    {
+        try
+        {
+            while (running)
+            {
+                Frame frame = obtainFrame();
+
+                try
+                {
+                    if (!input.readEncryptedFrame(frame))
+                    {
+                        frame.endOfStream = true;
+                    }
+                }
+                catch (Exception readError)
+                {
+                    frame.error = readError;
+                }
+
+                encryptedFrames.put(frame);
+
+                if (frame.endOfStream || frame.error != null)
+                {
+                    return;
+                }
+            }
+        }
+        catch (InterruptedException interrupted)
+        {
+            Log.i("FramePipeline", "Network thread stopped.");
+        }
+    }
+
+    // Runs on the decrypt thread. Frames leave in the order they arrived, so the application sees the stream unchanged.
+    void decryptFrames()
+    {
+        try
+        {
+            while (running)
+            {
+                Frame frame = encryptedFrames.take();
+
+                if (!frame.endOfStream && frame.error == null)
+                {
+                    try
+                    {
+                        frame.dataBuffer.clear();
+                        frame.dataBuffer.limit(frame.end);
+                        long start = System.nanoTime();
+                        frame.end = payloadCipher.decryptInPlace(frame.nonce, frame.dataBuffer);
+                        input.stats.recordDecrypt(System.nanoTime() - start);
+                        input.stats.recordFrameReceived(frame.end);
+                    }
+                    catch (Exception decryptError)
+                    {
+                        frame.error = decryptError;
+                    }
+                }
+
+                decryptedFrames.put(frame);
+
+                if (frame.endOfStream || frame.error != null)
+                {
+                    return;
+                }
+            }
+        }
+        catch (InterruptedException interrupted)
+        {
+            Log.i("FramePipeline", "Decrypt thread stopped.");
+        }
+    }
+
+    // Copies decrypted plaintext into b, waiting for the next frame only if nothing is ready.
+    // Returns -1 at the end of the stream.
+    int read(byte[] b, int off, int len) throws IOException
+    {
+        while (current == null || current.start == current.end)
+        {
+            if (current != null)
+            {
+                recycle(current);
+                current = null;
+            }
+
+            Frame next;
+            try
+            {
+                next = decryptedFrames.take();
+            }
+            catch (InterruptedException interrupted)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException();
+            }
+
+            if (!running)
+            {
+                // put it back so the next reader wakes up too
+                decryptedFrames.offer(next);
+                Log.e("FramePipeline", "Read from a closed stream.");
+                throw new IOException();
+            }
+
+            if (next.error != null)
+            {
+                // put the failure back so that later reads see it too
+                decryptedFrames.offer(next);
+                throw input.readFailure(next.error);
+            }
+
+            if (next.endOfStream)
+            {
+                decryptedFrames.offer(next);
+                return -1;
+            }
+
+            current = next;
+        }
+
+        int resultSize = Math.min(len, current.end - current.start);
+        System.arraycopy(current.data, current.start, b, off, resultSize);
+        current.start += resultSize;
+
+        return resultSize;
+    }
+
+    // Returns the number of decrypted bytes waiting to be read.
+    int available()
+    {
+        int available = 0;
+
+        if (current != null)
+        {
+            available += current.end - current.start;
+        }
+
+        for (Frame frame : decryptedFrames)
+        {
+            if (frame.error == null && !frame.endOfStream)
+            {
+                available += frame.end - frame.start;
+            }
+        }
+
+        return available;
+    }
+
+    Frame obtainFrame()
+    {
+        Frame frame = freeFrames.poll();
+        if (frame == null)
+        {
+            frame = new Frame();
+        }
+
+        return frame;
+    }
+
+    void recycle(Frame frame)
+    {
+        freeFrames.offer(frame);
+    }
+}
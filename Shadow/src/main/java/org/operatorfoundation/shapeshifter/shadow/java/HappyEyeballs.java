@@ -0,0 +1,205 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// HappyEyeballs connects to whichever of a server's addresses answers first (RFC 8305). Attempts start
+// attemptDelayMillis apart, alternating between IPv6 and IPv4, and a failed attempt starts the next one at once.
+// The first connection to succeed wins and the rest are closed, so a broken IPv6 path costs one delay, not an OS timeout.
+//
+// Each attempt is a plain Socket connecting on its own thread. A SocketChannel would be simpler to race, but on
+// Android and older JDKs the streams of its socket adaptor share one lock, so a blocked read stalls every write.
+public class HappyEyeballs
+{
+    // The delay RFC 8305 recommends between connection attempts.
+    public static volatile long attemptDelayMillis = 250;
+
+    // How long a single attempt may take, in milliseconds. 0 leaves it to the operating system.
+    public static volatile int connectTimeoutMillis = 0;
+
+    // The outcome of one attempt: either its connected socket or the error that ended it.
+    static class Attempt
+    {
+        final Socket socket;
+        final IOException error;
+
+        Attempt(Socket socket, IOException error)
+        {
+            this.socket = socket;
+            this.error = error;
+        }
+    }
+
+    // Connects to the first address that answers. A single address is connected to directly.
+    public static Socket connect(InetAddress[] addresses, int port) throws IOException
+    {
+        if (addresses.length == 1)
+        {
+            Socket socket = new Socket();
+            try
+            {
+                socket.connect(new InetSocketAddress(addresses[0], port), connectTimeoutMillis);
+            }
+            catch (IOException connectError)
+            {
+                socket.close();
+                throw connectError;
+            }
+
+            return socket;
+        }
+
+        List<InetAddress> ordered = interleave(addresses);
+        LinkedBlockingQueue<Attempt> results = new LinkedBlockingQueue<>();
+        List<Socket> attempts = new ArrayList<>();
+        Socket winner = null;
+        IOException lastError = null;
+        int pending = 0;
+
+        try
+        {
+            attempts.add(start(new InetSocketAddress(ordered.get(0), port), results));
+            pending++;
+
+            while (winner == null)
+            {
+                if (pending == 0)
+                {
+                    throw lastError;
+                }
+
+                // wait for an attempt to finish, or until it is time to start the next one alongside it
+                Attempt result;
+                if (attempts.size() < ordered.size())
+                {
+                    result = results.poll(attemptDelayMillis, TimeUnit.MILLISECONDS);
+                    if (result == null)
+                    {
+                        attempts.add(start(new InetSocketAddress(ordered.get(attempts.size()), port), results));
+                        pending++;
+                        continue;
+                    }
+                }
+                else
+                {
+                    result = results.take();
+                }
+
+                pending--;
+                if (result.error == null)
+                {
+                    winner = result.socket;
+                }
+                else
+                {
+                    // start the next attempt at once rather than waiting out the delay
+                    lastError = result.error;
+                    if (attempts.size() < ordered.size())
+                    {
+                        attempts.add(start(new InetSocketAddress(ordered.get(attempts.size()), port), results));
+                        pending++;
+                    }
+                }
+            }
+        }
+        catch (InterruptedException interrupted)
+        {
+            throw new InterruptedIOException("Interrupted while connecting.");
+        }
+        finally
+        {
+            // closing a socket that is still connecting makes its connect fail, which ends the attempt's thread
+            for (Socket attempt : attempts)
+            {
+                if (attempt != winner)
+                {
+                    closeQuietly(attempt);
+                }
+            }
+        }
+
+        return winner;
+    }
+
+    // Starts connecting a new socket to address on a daemon thread and returns the socket, which is still connecting.
+    static Socket start(final InetSocketAddress address, final LinkedBlockingQueue<Attempt> results)
+    {
+        final Socket socket = new Socket();
+        Thread attemptThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    socket.connect(address, connectTimeoutMillis);
+                    results.add(new Attempt(socket, null));
+                }
+                catch (IOException connectError)
+                {
+                    closeQuietly(socket);
+                    results.add(new Attempt(socket, connectError));
+                }
+            }
+        }, "HappyEyeballs " + address);
+        attemptThread.setDaemon(true);
+        attemptThread.start();
+
+        return socket;
+    }
+
+    static void closeQuietly(Socket socket)
+    {
+        try
+        {
+            socket.close();
+        }
+        catch (IOException closeError)
+        {
+            // already closed
+        }
+    }
+
+    // Orders addresses to alternate between families, starting with the family of the first one.
+    static List<InetAddress> interleave(InetAddress[] addresses)
+    {
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        boolean firstIsIPv6 = addresses[0] instanceof Inet6Address;
+        for (InetAddress address : addresses)
+        {
+            if ((address instanceof Inet6Address) == firstIsIPv6)
+            {
+                first.add(address);
+            }
+            else
+            {
+                second.add(address);
+            }
+        }
+
+        List<InetAddress> ordered = new ArrayList<>();
+        for (int index = 0; index < Math.max(first.size(), second.size()); index++)
+        {
+            if (index < first.size())
+            {
+                ordered.add(first.get(index));
+            }
+
+            if (index < second.size())
+            {
+                ordered.add(second.get(index));
+            }
+        }
+
+        return ordered;
+    }
+}
@@ -0,0 +1,71 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+
+// HostResolver caches name lookups for Shadow servers for a limited time. Every socket shares the cache,
+// so a dial resolves its server once at most and the later steps reuse that address.
+public class HostResolver
+{
+    public static final long defaultTimeToLiveMillis = 60 * 1000;
+
+    static volatile long timeToLiveMillis = defaultTimeToLiveMillis;
+    static final ConcurrentHashMap<String, Resolved> cache = new ConcurrentHashMap<>();
+
+    static class Resolved
+    {
+        final InetAddress[] addresses;
+        final long expiresAt;
+
+        Resolved(InetAddress[] addresses, long expiresAt)
+        {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // Returns the first address of host, looking it up only if the cached answer is missing or older than the time to live.
+    // Failed lookups are not cached.
+    public static InetAddress resolve(String host) throws UnknownHostException
+    {
+        return lookup(host)[0];
+    }
+
+    // Returns every address of host, in the order the resolver gave them, using the same cache as resolve.
+    public static InetAddress[] resolveAll(String host) throws UnknownHostException
+    {
+        return lookup(host).clone();
+    }
+
+    static InetAddress[] lookup(String host) throws UnknownHostException
+    {
+        long now = System.currentTimeMillis();
+        Resolved resolved = cache.get(host);
+        if (resolved != null && now < resolved.expiresAt)
+        {
+            return resolved.addresses;
+        }
+
+        InetAddress[] addresses = InetAddress.getAllByName(host);
+        cache.put(host, new Resolved(addresses, now + timeToLiveMillis));
+
+        return addresses;
+    }
+
+    // Sets how long answers are kept. Zero turns the cache off.
+    public static void setTimeToLive(long millis)
+    {
+        timeToLiveMillis = millis;
+        if (millis <= 0)
+        {
+            cache.clear();
+        }
+    }
+
+    // Forgets every cached answer, for example after the network changes.
+    public static void clear()
+    {
+        cache.clear();
+    }
+}
@@ -0,0 +1,112 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// LatencyHistogram counts durations in microseconds so percentiles can be read off later without keeping samples.
+// Buckets are exact below 8 us. Above that each power of two is split into 8 buckets, so a percentile is within
+// about 6% of the true value. Durations up to about 12 days fit; longer ones land in the last bucket.
+class LatencyHistogram
+{
+    static final int subBuckets = 8;
+    static final int subBucketBits = 3;
+    static final int maxExponent = 40;
+    static final int bucketCount = (maxExponent - subBucketBits + 2) * subBuckets;
+
+    final AtomicLongArray counts = new AtomicLongArray(bucketCount);
+    final StripedCounter count = new StripedCounter();
+    final StripedCounter totalMicros = new StripedCounter();
+    final AtomicLong maxMicros = new AtomicLong();
+
+    void record(long nanos)
+    {
+        long micros = Math.max(0, nanos / 1000);
+
+        counts.incrementAndGet(bucket(micros));
+        count.increment();
+        totalMicros.add(micros);
+
+        while (true)
+        {
+            long max = maxMicros.get();
+            if (micros <= max || maxMicros.compareAndSet(max, micros))
+            {
+                break;
+            }
+        }
+    }
+
+    // Returns the duration in microseconds that fraction of recordings are at or below, or 0 if nothing was recorded.
+    long percentile(double fraction)
+    {
+        long[] snapshot = ShadowSocketStats.snapshot(counts);
+        long total = 0;
+        for (long bucketTotal : snapshot)
+        {
+            total += bucketTotal;
+        }
+
+        if (total == 0)
+        {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int bucket = 0; bucket < snapshot.length; bucket++)
+        {
+            seen += snapshot[bucket];
+            if (seen >= rank && snapshot[bucket] > 0)
+            {
+                // report the middle of the bucket, but never more than the largest duration seen
+                return Math.min(maxMicros.get(), lowerBound(bucket) + (lowerBound(bucket + 1) - lowerBound(bucket)) / 2);
+            }
+        }
+
+        return maxMicros.get();
+    }
+
+    long count()
+    {
+        return count.sum();
+    }
+
+    double meanMicros()
+    {
+        long count = this.count.sum();
+        return count == 0 ? 0 : (double) totalMicros.sum() / count;
+    }
+
+    long maxMicros()
+    {
+        return maxMicros.get();
+    }
+
+    static int bucket(long micros)
+    {
+        if (micros < subBuckets)
+        {
+            return (int) micros;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > maxExponent)
+        {
+            return bucketCount - 1;
+        }
+
+        int subBucket = (int) (micros >>> (exponent - subBucketBits)) & (subBuckets - 1);
+        return (exponent - subBucketBits + 1) * subBuckets + subBucket;
+    }
+
+    static long lowerBound(int bucket)
+    {
+        if (bucket < subBuckets)
+        {
+            return bucket;
+        }
+
+        int exponent = bucket / subBuckets + subBucketBits - 1;
+        return (long) (subBuckets + bucket % subBuckets) << (exponent - subBucketBits);
+    }
+}
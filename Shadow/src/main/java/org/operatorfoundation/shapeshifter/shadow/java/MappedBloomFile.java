@@ -0,0 +1,157 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// MappedBloomFile keeps both of Bloom's generations in one memory-mapped file. Opening it maps the file without
+// reading it, and inserts land in the mapping as they happen, so nothing needs to be saved on shutdown.
+//
+// The file is a 64 byte header followed by two filters of wordCount words each:
+// [magic 4][version 4][word count 4][hash count 4][current slot 4][has previous 4][created at 8][salt count 4], big endian.
+class MappedBloomFile implements Closeable
+{
+    static final int magic = 0x424C4F4D;
+    static final int version = 1;
+    static final int headerSize = 64;
+
+    static final int wordCountOffset = 8;
+    static final int hashCountOffset = 12;
+    static final int currentSlotOffset = 16;
+    static final int hasPreviousOffset = 20;
+    static final int createdAtOffset = 24;
+    static final int saltCountOffset = 32;
+
+    // A power of two, so a word's lock is picked with a mask.
+    static final int lockCount = 64;
+
+    final MappedByteBuffer buffer;
+    final MappedBloomFilter[] slots = new MappedBloomFilter[2];
+
+    // Opens fileName, creating it with the given size if it does not exist. An existing file keeps its own size.
+    MappedBloomFile(String fileName, int wordCount, int hashCount, long now) throws IOException
+    {
+        File file = new File(fileName);
+        boolean created = !file.exists() || file.length() == 0;
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw"))
+        {
+            if (created)
+            {
+                randomAccessFile.setLength(headerSize + 2L * wordCount * 8);
+            }
+            else if (randomAccessFile.length() < headerSize)
+            {
+                Log.e("MappedBloomFile", "Bloom filter file is too short: " + fileName);
+                throw new IOException("Corrupt Bloom filter file");
+            }
+
+            // the mapping stays valid after the file is closed
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, randomAccessFile.length());
+        }
+
+        if (created)
+        {
+            buffer.putInt(0, magic);
+            buffer.putInt(4, version);
+            buffer.putInt(wordCountOffset, wordCount);
+            buffer.putInt(hashCountOffset, hashCount);
+            buffer.putInt(currentSlotOffset, 0);
+            buffer.putInt(hasPreviousOffset, 0);
+            buffer.putLong(createdAtOffset, now);
+            buffer.putInt(saltCountOffset, 0);
+        }
+        else
+        {
+            wordCount = buffer.getInt(wordCountOffset);
+            hashCount = buffer.getInt(hashCountOffset);
+            int currentSlot = buffer.getInt(currentSlotOffset);
+
+            if (buffer.getInt(0) != magic || buffer.getInt(4) != version || wordCount <= 0 || hashCount <= 0 || hashCount > ConcurrentBloomFilter.maxHashCount
+                    || (currentSlot != 0 && currentSlot != 1) || buffer.capacity() != headerSize + 2L * wordCount * 8)
+            {
+                Log.e("MappedBloomFile", "Not a Bloom filter file or corrupt: " + fileName);
+                throw new IOException("Corrupt Bloom filter file");
+            }
+        }
+
+        Object[] locks = new Object[lockCount];
+        for (int index = 0; index < lockCount; index++)
+        {
+            locks[index] = new Object();
+        }
+
+        for (int slot = 0; slot < 2; slot++)
+        {
+            slots[slot] = new MappedBloomFilter(buffer, headerSize + slot * wordCount * 8, wordCount, hashCount, locks);
+        }
+    }
+
+    synchronized MappedBloomFilter current()
+    {
+        return slots[buffer.getInt(currentSlotOffset)];
+    }
+
+    synchronized MappedBloomFilter previous()
+    {
+        if (buffer.getInt(hasPreviousOffset) == 0)
+        {
+            return null;
+        }
+
+        return slots[1 - buffer.getInt(currentSlotOffset)];
+    }
+
+    synchronized long createdAt()
+    {
+        return buffer.getLong(createdAtOffset);
+    }
+
+    synchronized int saltCount()
+    {
+        return buffer.getInt(saltCountOffset);
+    }
+
+    // Remembers how full generation is, if it is still the current one. A count from a generation that has since
+    // been rotated out is dropped, so it cannot overwrite the new generation's count.
+    synchronized void recordSaltCount(ConcurrentBloomFilter generation, int saltCount)
+    {
+        if (slots[buffer.getInt(currentSlotOffset)] != generation || buffer.getInt(saltCountOffset) >= saltCount)
+        {
+            return;
+        }
+
+        buffer.putInt(saltCountOffset, saltCount);
+    }
+
+    // Empties the previous generation and makes it the current one. The slot is switched last, so a crash part
+    // way through loses at most some of the oldest salts.
+    synchronized void rotate(long now)
+    {
+        int nextSlot = 1 - buffer.getInt(currentSlotOffset);
+        slots[nextSlot].clear();
+
+        buffer.putInt(saltCountOffset, 0);
+        buffer.putLong(createdAtOffset, now);
+        buffer.putInt(hasPreviousOffset, 1);
+        buffer.putInt(currentSlotOffset, nextSlot);
+    }
+
+    // Asks the operating system to write the mapping back now rather than when it chooses.
+    void force()
+    {
+        buffer.force();
+    }
+
+    // Android cannot unmap a buffer, so closing writes it back and leaves the mapping to the garbage collector.
+    @Override
+    public void close()
+    {
+        force();
+    }
+}
@@ -0,0 +1,70 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+import java.nio.MappedByteBuffer;
+
+// MappedBloomFilter is a ConcurrentBloomFilter whose words live in a region of a memory-mapped file, so every insert
+// reaches the page cache at once and the operating system writes it back on its own schedule.
+// A mapped buffer has no compare-and-set, so each word is guarded by one of a fixed set of locks instead.
+class MappedBloomFilter extends ConcurrentBloomFilter
+{
+    final MappedByteBuffer buffer;
+    final int offset;
+    final int wordCount;
+    final Object[] locks;
+
+    // Uses wordCount words of buffer starting at offset. Filters over the same buffer can share locks.
+    MappedBloomFilter(MappedByteBuffer buffer, int offset, int wordCount, int hashCount, Object[] locks)
+    {
+        super(null, hashCount);
+        this.buffer = buffer;
+        this.offset = offset;
+        this.wordCount = wordCount;
+        this.locks = locks;
+    }
+
+    @Override
+    public int wordCount()
+    {
+        return wordCount;
+    }
+
+    @Override
+    long word(int index)
+    {
+        synchronized (lock(index))
+        {
+            return buffer.getLong(offset + index * 8);
+        }
+    }
+
+    @Override
+    boolean compareAndSetWord(int index, long expect, long update)
+    {
+        synchronized (lock(index))
+        {
+            if (buffer.getLong(offset + index * 8) != expect)
+            {
+                return false;
+            }
+
+            buffer.putLong(offset + index * 8, update);
+            return true;
+        }
+    }
+
+    void clear()
+    {
+        for (int index = 0; index < wordCount; index++)
+        {
+            synchronized (lock(index))
+            {
+                buffer.putLong(offset + index * 8, 0);
+            }
+        }
+    }
+
+    Object lock(int index)
+    {
+        return locks[index & (locks.length - 1)];
+    }
+}
@@ -0,0 +1,372 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+// One stream carried by a ShadowMultiplexer. It behaves like a connected Socket: closing it ends only this stream,
+// and the connection underneath stays open for the others.
+public class MultiplexedSocket extends Socket
+{
+    final ShadowMultiplexer multiplexer;
+    final int id;
+
+    // The fields below are guarded by the multiplexer's lock.
+
+    // Data from the other end that the application has not read yet, in write mode. Its size is the receive window.
+    final ByteBuffer inbound;
+
+    // Data from the application that has not been sent yet, in write mode.
+    final ByteBuffer outbound;
+
+    // How many more bytes the other end is willing to receive.
+    int sendWindow;
+
+    // Bytes the application has read since the last WINDOW_UPDATE.
+    int unacknowledged;
+
+    boolean scheduled;
+    boolean inputShutdown;
+    boolean outputShutdown;
+    boolean closeSent;
+    boolean remoteClosed;
+    boolean reset;
+    boolean closed;
+
+    // How long a read waits for data, in milliseconds, or 0 to wait forever.
+    int soTimeout;
+
+    final InputStream inputStream = new InputStream()
+    {
+        @Override
+        public int read() throws IOException
+        {
+            byte[] oneByte = new byte[1];
+            int bytesRead = read(oneByte, 0, 1);
+
+            return bytesRead == -1 ? -1 : oneByte[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            return MultiplexedSocket.this.read(b, off, len);
+        }
+
+        @Override
+        public int available()
+        {
+            synchronized (multiplexer)
+            {
+                return inbound.position();
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            MultiplexedSocket.this.close();
+        }
+    };
+
+    final OutputStream outputStream = new OutputStream()
+    {
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            MultiplexedSocket.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            MultiplexedSocket.this.close();
+        }
+    };
+
+    MultiplexedSocket(ShadowMultiplexer multiplexer, int id)
+    {
+        this.multiplexer = multiplexer;
+        this.id = id;
+        this.inbound = ByteBuffer.allocate(multiplexer.windowSize);
+        this.outbound = ByteBuffer.allocate(multiplexer.sendBufferSize);
+        this.sendWindow = multiplexer.windowSize;
+    }
+
+    public int getStreamId()
+    {
+        return id;
+    }
+
+    @Override
+    public InputStream getInputStream()
+    {
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream()
+    {
+        return outputStream;
+    }
+
+    // Sends everything written so far and then tells the other end that this stream will send no more.
+    @Override
+    public void shutdownOutput()
+    {
+        synchronized (multiplexer)
+        {
+            outputShutdown = true;
+            multiplexer.schedule(this);
+        }
+    }
+
+    // Discards incoming data. The window is still granted back so the other end is not left waiting.
+    @Override
+    public void shutdownInput()
+    {
+        synchronized (multiplexer)
+        {
+            inputShutdown = true;
+            consumed(inbound.position());
+            inbound.clear();
+            multiplexer.notifyAll();
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        synchronized (multiplexer)
+        {
+            if (closed)
+            {
+                return;
+            }
+
+            closed = true;
+            shutdownInput();
+            shutdownOutput();
+        }
+    }
+
+    @Override
+    public boolean isClosed()
+    {
+        synchronized (multiplexer)
+        {
+            return closed;
+        }
+    }
+
+    // False once the connection underneath has closed or failed.
+    @Override
+    public boolean isConnected()
+    {
+        synchronized (multiplexer)
+        {
+            return !multiplexer.closed;
+        }
+    }
+
+    // Reads that wait longer than timeout milliseconds throw SocketTimeoutException. 0 waits forever.
+    @Override
+    public void setSoTimeout(int timeout)
+    {
+        if (timeout < 0)
+        {
+            throw new IllegalArgumentException("timeout can't be negative");
+        }
+
+        synchronized (multiplexer)
+        {
+            soTimeout = timeout;
+        }
+    }
+
+    @Override
+    public int getSoTimeout()
+    {
+        synchronized (multiplexer)
+        {
+            return soTimeout;
+        }
+    }
+
+    @Override
+    public boolean isInputShutdown()
+    {
+        synchronized (multiplexer)
+        {
+            return inputShutdown;
+        }
+    }
+
+    @Override
+    public boolean isOutputShutdown()
+    {
+        synchronized (multiplexer)
+        {
+            return outputShutdown;
+        }
+    }
+
+    @Override
+    public InetAddress getInetAddress()
+    {
+        return multiplexer.socket == null ? null : multiplexer.socket.getInetAddress();
+    }
+
+    @Override
+    public int getPort()
+    {
+        return multiplexer.socket == null ? 0 : multiplexer.socket.getPort();
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress()
+    {
+        return multiplexer.socket == null ? null : multiplexer.socket.getRemoteSocketAddress();
+    }
+
+    int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+
+        synchronized (multiplexer)
+        {
+            long deadline = soTimeout == 0 ? 0 : System.currentTimeMillis() + soTimeout;
+            while (inbound.position() == 0)
+            {
+                if (inputShutdown || remoteClosed)
+                {
+                    return -1;
+                }
+
+                if (reset)
+                {
+                    throw new IOException("Stream " + id + " was reset.");
+                }
+
+                if (multiplexer.closed)
+                {
+                    throw multiplexer.closedError();
+                }
+
+                if (deadline == 0)
+                {
+                    multiplexer.waitForChange();
+                    continue;
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+
+                multiplexer.waitForChange(remaining);
+            }
+
+            inbound.flip();
+            int count = Math.min(len, inbound.remaining());
+            inbound.get(b, off, count);
+            inbound.compact();
+            consumed(count);
+
+            return count;
+        }
+    }
+
+    void write(byte[] b, int off, int len) throws IOException
+    {
+        synchronized (multiplexer)
+        {
+            while (len > 0)
+            {
+                if (outputShutdown)
+                {
+                    throw new IOException("Stream " + id + " is closed for writing.");
+                }
+
+                if (reset || multiplexer.closed)
+                {
+                    throw new IOException("Stream " + id + " was reset.");
+                }
+
+                int count = Math.min(len, outbound.remaining());
+                if (count == 0)
+                {
+                    multiplexer.waitForChange();
+                    continue;
+                }
+
+                outbound.put(b, off, count);
+                off += count;
+                len -= count;
+                multiplexer.schedule(this);
+            }
+        }
+    }
+
+    // Grants consumed bytes back to the other end, in batches of half a window to keep WINDOW_UPDATE frames rare.
+    void consumed(int count)
+    {
+        unacknowledged += count;
+        if (unacknowledged >= multiplexer.windowSize / 2 && !remoteClosed && !reset)
+        {
+            multiplexer.sendControl(id, ShadowMultiplexer.typeWindowUpdate, unacknowledged);
+            unacknowledged = 0;
+        }
+    }
+
+    boolean hasFrameToSend()
+    {
+        if (reset || closeSent)
+        {
+            return false;
+        }
+
+        if (outbound.position() > 0)
+        {
+            return sendWindow > 0;
+        }
+
+        return outputShutdown;
+    }
+
+    // Moves the next DATA frame, or the CLOSE frame once all data is sent, into frame. Returns the frame's size.
+    int takeFrame(byte[] frame)
+    {
+        if (outbound.position() > 0)
+        {
+            int count = Math.min(outbound.position(), Math.min(sendWindow, ShadowMultiplexer.maxFramePayload));
+            outbound.flip();
+            outbound.get(frame, ShadowMultiplexer.headerSize, count);
+            outbound.compact();
+            sendWindow -= count;
+            ShadowMultiplexer.writeHeader(frame, id, ShadowMultiplexer.typeData, count);
+
+            return ShadowMultiplexer.headerSize + count;
+        }
+
+        closeSent = true;
+        ShadowMultiplexer.writeHeader(frame, id, ShadowMultiplexer.typeClose, 0);
+
+        return ShadowMultiplexer.headerSize;
+    }
+}
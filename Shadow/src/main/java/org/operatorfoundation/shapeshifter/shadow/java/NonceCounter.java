@@ -0,0 +1,120 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+import java.util.Arrays;
+
+// NonceCounter builds DarkStar's AES-GCM nonces from a primitive counter into one reused 12 byte array.
+public class NonceCounter
+{
+    static final int nonceSize = 12;
+    static final int fixedFieldSize = 4;
+    static final byte fixedFieldByte = (byte) 0x1A;
+
+    final byte[] iv = new byte[nonceSize];
+
+    // The invocation field, treated as an unsigned 64 bit integer.
+    long counter = 0;
+
+    public NonceCounter()
+    {
+        // NIST Special Publication 800-38D - Recommendation for Block Cipher Modes of Operation: Galois/Counter Mode (GCM) and GMAC
+        // https://nvlpubs.nist.gov/nistpubs/Legacy/SP/nistspecialpublication800-38d.pdf
+        // Section 8.2.1 - Deterministic Construction
+        // Applicable to nonces of 96 bytes or less.
+
+        /*
+         In the deterministic construction, the IV is the concatenation of two
+         fields, called the fixed field and the invocation field. The fixed field
+         shall identify the device, or, more generally, the context for the
+         instance of the authenticated encryption function. The invocation field
+         shall identify the sets of inputs to the authenticated encryption
+         function in that particular device.
+
+         For any given key, no two distinct devices shall share the same fixed
+         field, and no two distinct sets of inputs to any single device shall
+         share the same invocation field. Compliance with these two requirements
+         implies compliance with the uniqueness requirement on IVs in Sec. 8.
+
+         If desired, the fixed field itself may be constructed from two or more
+         smaller fields. Moreover, one of those smaller fields could consist of
+         bits that are arbitrary (i.e., not necessarily deterministic nor unique
+         to the device), as long as the remaining bits ensure that the fixed
+         field is not repeated in its entirety for some other device with the
+         same key.
+
+         Similarly, the entire fixed field may consist of arbitrary bits when
+         there is only one context to identify, such as when a fresh key is
+         limited to a single session of a communications protocol. In this case,
+         if different participants in the session share a common fixed field,
+         then the protocol shall ensure that the invocation fields are distinct
+         for distinct data inputs.
+        */
+        Arrays.fill(iv, 0, fixedFieldSize, fixedFieldByte);
+    }
+
+    // Writes the current counter into the shared nonce array, increments the counter, and returns the array.
+    // The returned array is overwritten by the next call, so it must be consumed before then.
+    public synchronized byte[] next() throws Exception
+    {
+        /*
+         The invocation field typically is either 1) an integer counter or 2) a
+         linear feedback shift register that is driven by a primitive polynomial
+         to ensure a maximal cycle length. In either case, the invocation field
+         increments upon each invocation of the authenticated encryption
+         function.
+
+         The lengths and positions of the fixed field and the invocation field
+         shall be fixed for each supported IV length for the life of the key. In
+         order to promote interoperability for the default IV length of 96 bits,
+         this Recommendation suggests, but does not require, that the leading
+         (i.e., leftmost) 32 bits of the IV hold the fixed field; and that the
+         trailing (i.e., rightmost) 64 bits hold the invocation field.
+        */
+        writeInvocationField(counter);
+
+        // -1 is the largest unsigned 64 bit value
+        if (counter == -1L)
+        {
+            throw new Exception("64 bit nonce counter overflow");
+        }
+
+        counter++;
+
+        return iv;
+    }
+
+    // Reserves count consecutive counter values and returns the first of them.
+    // The reserved values are skipped by next(), so they can be used later, possibly on another thread, through at().
+    public synchronized long reserve(int count) throws Exception
+    {
+        // the counter may advance up to, but not onto, the largest unsigned 64 bit value
+        long remaining = -1L - counter;
+        if (count < 0 || (count ^ Long.MIN_VALUE) > (remaining ^ Long.MIN_VALUE))
+        {
+            throw new Exception("64 bit nonce counter overflow");
+        }
+
+        long first = counter;
+        counter += count;
+
+        return first;
+    }
+
+    // Writes a previously reserved counter value into the shared nonce array and returns the array.
+    // The returned array is overwritten by the next call, so it must be consumed before then.
+    public byte[] at(long reservedCounter)
+    {
+        writeInvocationField(reservedCounter);
+
+        return iv;
+    }
+
+    // Writes the counter into the trailing 64 bits of the nonce in big endian.
+    void writeInvocationField(long value)
+    {
+        for (int index = nonceSize - 1; index >= fixedFieldSize; index--)
+        {
+            iv[index] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package org.operatorfoundation.shapeshifter.shadow.java;
 
+import java.nio.ByteBuffer;
+
 import javax.crypto.Cipher;
 
 public abstract class ShadowCipher
@@ -12,16 +14,63 @@ public abstract class ShadowCipher
 
     Cipher cipher;
 
+    // Returns the number of bytes pack produces for a plaintext of the given length.
+    public static int packedSize(int plaintextLength)
+    {
+        return lengthWithTagSize + plaintextLength + tagSize;
+    }
+
     // [encrypted payload length][length tag] + [encrypted payload][payload tag]
     // Pack takes the data above and packs them into a singular byte array.
     public abstract byte[] pack(byte[] plaintext) throws Exception;
 
+    // Packs the remaining bytes of plaintext straight into output at its current position, without intermediate arrays.
+    // Either buffer may be heap or direct, but they must not overlap. Both buffers are advanced past the bytes used.
+    public abstract void pack(ByteBuffer plaintext, ByteBuffer output) throws Exception;
+
+    // Packs like pack(ByteBuffer, ByteBuffer), using the two nonces reserved with reserveNonces that start at nonce.
+    // The shared counter is not touched, so this may run on a forked cipher while the original keeps going.
+    public abstract void pack(long nonce, ByteBuffer plaintext, ByteBuffer output) throws Exception;
+
     // Encrypts the data and increments the nonce counter.
     abstract byte[] encrypt(byte[] plaintext) throws Exception;
 
     // Decrypts data and increments the nonce counter.
     public abstract byte[] decrypt(byte[] encrypted) throws Exception;
 
+    // Decrypts the remaining bytes of encrypted straight into output at its current position and increments the nonce counter.
+    // Both buffers are advanced past the bytes used. Returns the plaintext length.
+    public abstract int decrypt(ByteBuffer encrypted, ByteBuffer output) throws Exception;
+
+    // Decrypts the remaining bytes of the buffer in place and increments the nonce counter.
+    // On return the buffer's position is unchanged and its limit marks the end of the plaintext.
+    public abstract int decryptInPlace(ByteBuffer buffer) throws Exception;
+
+    // Decrypts the remaining bytes of the buffer in place using a nonce reserved with reserveNonces.
+    // The shared counter is not touched, so this may run on a forked cipher while the original keeps going.
+    public abstract int decryptInPlace(long nonce, ByteBuffer buffer) throws Exception;
+
+    // Reserves count consecutive nonces and returns the first counter value, so frames can be processed out of line.
+    public abstract long reserveNonces(int count) throws Exception;
+
+    // Returns a cipher with the same key but its own Cipher instance, for using reserved nonces on another thread.
+    public abstract ShadowCipher fork() throws Exception;
+
+    // Decrypts the [encrypted payload length][length tag] header at the buffer's position in place and returns the payload length.
+    // On return the buffer's position is just past the header and its limit is unchanged.
+    public int unpackLength(ByteBuffer encryptedLength) throws Exception
+    {
+        int start = encryptedLength.position();
+        int limit = encryptedLength.limit();
+        encryptedLength.limit(start + lengthWithTagSize);
+        decryptInPlace(encryptedLength);
+        int length = ((encryptedLength.get(start) & 0xFF) << 8) | (encryptedLength.get(start + 1) & 0xFF);
+        encryptedLength.limit(limit);
+        encryptedLength.position(start + lengthWithTagSize);
+
+        return length;
+    }
+
     // Create a nonce using our counter.
     public abstract byte[] nonce() throws Exception;
 }
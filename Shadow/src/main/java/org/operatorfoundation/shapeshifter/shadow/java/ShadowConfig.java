@@ -2,11 +2,19 @@ package org.operatorfoundation.shapeshifter.shadow.java;
 
 import android.util.Log;
 
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+
 public class ShadowConfig {
     final String password;
     final String cipherName;
     public CipherMode cipherMode;
 
+    // The server's persistent public key, decoded from the password by the first connection and shared by the rest.
+    private volatile PublicKey serverPersistentPublicKey;
+    private byte[] serverPersistentPublicKeyData;
+
     // ShadowConfig is a class that implements the arguments necessary for a Shadowsocks connection.
     public ShadowConfig(String password, String cipherName) throws IllegalArgumentException
     {
@@ -23,4 +31,50 @@ public class ShadowConfig {
             throw error;
         }
     }
-}
\ No newline at end of file
+
+    // Returns the server's persistent public key. The password must be the 32-byte key as 64 hex digits.
+    public PublicKey serverPersistentPublicKey() throws NoSuchAlgorithmException, InvalidKeySpecException
+    {
+        PublicKey publicKey = serverPersistentPublicKey;
+        if (publicKey != null)
+        {
+            return publicKey;
+        }
+
+        synchronized (this)
+        {
+            if (serverPersistentPublicKey == null)
+            {
+                if (password == null || password.length() != 64 || !password.matches("[0-9a-fA-F]+"))
+                {
+                    Log.e("ShadowConfig", "The password is not a DarkStar public key.");
+                    throw new InvalidKeySpecException();
+                }
+
+                byte[] publicKeyData = DarkStar.hexToBytes(password);
+                try
+                {
+                    publicKey = DarkStar.bytesToPublicKey(publicKeyData);
+                }
+                catch (IllegalArgumentException error)
+                {
+                    Log.e("ShadowConfig", "The password is not a point on the curve.");
+                    throw new InvalidKeySpecException(error);
+                }
+
+                serverPersistentPublicKeyData = publicKeyData;
+                serverPersistentPublicKey = publicKey;
+            }
+
+            return serverPersistentPublicKey;
+        }
+    }
+
+    // Returns the 32 bytes of the server's persistent public key. The array is shared, so do not modify it.
+    byte[] serverPersistentPublicKeyData() throws NoSuchAlgorithmException, InvalidKeySpecException
+    {
+        serverPersistentPublicKey();
+
+        return serverPersistentPublicKeyData;
+    }
+}
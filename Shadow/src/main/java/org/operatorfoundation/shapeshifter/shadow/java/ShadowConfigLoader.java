@@ -0,0 +1,307 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Properties;
+
+// ShadowConfigLoader fetches the JSON server config and keeps a copy on disk. load() answers from the disk copy
+// whenever there is one, so an app can open its first tunnel without waiting for the network. Once the copy is older
+// than the time to live it is revalidated in the background with If-None-Match and If-Modified-Since, and a changed
+// config is written to disk for the next load. Only the very first load, with nothing cached, waits for a download.
+public class ShadowConfigLoader
+{
+    public interface Listener
+    {
+        // Called on the background thread when a revalidation brought a new config.
+        void onConfigUpdated(String jsonText);
+    }
+
+    public static final long defaultTimeToLiveMillis = 24 * 60 * 60 * 1000L;
+    static final Charset utf8 = Charset.forName("UTF-8");
+
+    final URL url;
+    final File configFile;
+    final File metadataFile;
+    final long timeToLiveMillis;
+    volatile Listener listener;
+
+    // Guarded by this loader's lock.
+    boolean revalidating;
+
+    public ShadowConfigLoader(URL url, File cacheDirectory, long timeToLiveMillis)
+    {
+        if (!url.getProtocol().equals("https")) {
+            System.out.println("protocol must be https");
+        }
+
+        String name = "shadow-config-" + Integer.toHexString(url.toString().hashCode());
+        this.url = url;
+        this.configFile = new File(cacheDirectory, name + ".json");
+        this.metadataFile = new File(cacheDirectory, name + ".properties");
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    public void setListener(Listener listener)
+    {
+        this.listener = listener;
+    }
+
+    // Returns the config JSON, from disk when possible. A stale copy is returned as is and refreshed in the background.
+    public String load() throws IOException
+    {
+        String cached = readCached();
+        if (cached == null)
+        {
+            return fetch(new Properties());
+        }
+
+        Properties metadata = readMetadata();
+        long fetchedAt = metadata == null ? -1 : fetchedAt(metadata);
+        if (fetchedAt < 0)
+        {
+            // a damaged cache entry is ignored, the same as a missing one
+            Log.e("ShadowConfigLoader", "The cached config's metadata is corrupt. Fetching it again.");
+            return fetch(new Properties());
+        }
+
+        if (System.currentTimeMillis() - fetchedAt >= timeToLiveMillis)
+        {
+            revalidateInBackground(metadata);
+        }
+
+        return cached;
+    }
+
+    // Downloads the config without using the cache.
+    public static String download(URL url) throws IOException
+    {
+        if (!url.getProtocol().equals("https")) {
+            System.out.println("protocol must be https");
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try
+        {
+            return readAll(connection.getInputStream());
+        }
+        finally
+        {
+            connection.disconnect();
+        }
+    }
+
+    // Fetches the config, sending the validators in metadata. Returns the new config, or null if the server says it has not changed.
+    String fetch(Properties metadata) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try
+        {
+            String etag = metadata.getProperty("etag");
+            String lastModified = metadata.getProperty("lastModified");
+            if (etag != null)
+            {
+                connection.setRequestProperty("If-None-Match", etag);
+            }
+            if (lastModified != null)
+            {
+                connection.setRequestProperty("If-Modified-Since", lastModified);
+            }
+
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED)
+            {
+                metadata.setProperty("fetchedAt", Long.toString(System.currentTimeMillis()));
+                writeMetadata(metadata);
+                return null;
+            }
+
+            if (status != HttpURLConnection.HTTP_OK)
+            {
+                Log.e("ShadowConfigLoader", "Config fetch failed with HTTP status " + status);
+                throw new IOException();
+            }
+
+            String jsonText = readAll(connection.getInputStream());
+
+            Properties updated = new Properties();
+            updated.setProperty("fetchedAt", Long.toString(System.currentTimeMillis()));
+            if (connection.getHeaderField("ETag") != null)
+            {
+                updated.setProperty("etag", connection.getHeaderField("ETag"));
+            }
+            if (connection.getHeaderField("Last-Modified") != null)
+            {
+                updated.setProperty("lastModified", connection.getHeaderField("Last-Modified"));
+            }
+
+            writeAtomically(configFile, jsonText.getBytes(utf8));
+            writeMetadata(updated);
+
+            return jsonText;
+        }
+        finally
+        {
+            connection.disconnect();
+        }
+    }
+
+    void revalidateInBackground(final Properties metadata)
+    {
+        synchronized (this)
+        {
+            if (revalidating)
+            {
+                return;
+            }
+            revalidating = true;
+        }
+
+        Thread revalidateThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    String jsonText = fetch(metadata);
+                    Listener currentListener = listener;
+                    if (jsonText != null && currentListener != null)
+                    {
+                        currentListener.onConfigUpdated(jsonText);
+                    }
+                }
+                catch (IOException fetchError)
+                {
+                    // keep serving the cached copy and try again on a later load
+                    Log.e("ShadowConfigLoader", "Config revalidation failed.");
+                }
+                finally
+                {
+                    synchronized (ShadowConfigLoader.this)
+                    {
+                        revalidating = false;
+                    }
+                }
+            }
+        }, "ShadowConfigLoader");
+        revalidateThread.setDaemon(true);
+        revalidateThread.start();
+    }
+
+    String readCached()
+    {
+        if (!configFile.isFile())
+        {
+            return null;
+        }
+
+        try
+        {
+            return readAll(new FileInputStream(configFile));
+        }
+        catch (IOException readError)
+        {
+            Log.e("ShadowConfigLoader", "The cached config could not be read.");
+            return null;
+        }
+    }
+
+    // Returns the cached metadata, or null if the file is corrupt. A missing or unreadable file gives empty metadata.
+    Properties readMetadata()
+    {
+        Properties metadata = new Properties();
+        if (metadataFile.isFile())
+        {
+            try (InputStream input = new FileInputStream(metadataFile))
+            {
+                metadata.load(input);
+            }
+            catch (IOException readError)
+            {
+                // treat the cached copy as stale
+            }
+            catch (IllegalArgumentException malformedError)
+            {
+                return null;
+            }
+        }
+
+        return metadata;
+    }
+
+    // Returns when the cached config was fetched, 0 if that was never recorded, or -1 if the record is corrupt.
+    static long fetchedAt(Properties metadata)
+    {
+        try
+        {
+            long fetchedAt = Long.parseLong(metadata.getProperty("fetchedAt", "0"));
+            return fetchedAt < 0 ? -1 : fetchedAt;
+        }
+        catch (NumberFormatException parseError)
+        {
+            return -1;
+        }
+    }
+
+    void writeMetadata(Properties metadata) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        metadata.store(bytes, null);
+        writeAtomically(metadataFile, bytes.toByteArray());
+    }
+
+    // Writes to a temporary file first so a crash never leaves a half-written config behind.
+    static void writeAtomically(File file, byte[] data) throws IOException
+    {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Could not create " + directory);
+        }
+
+        File temporary = new File(file.getPath() + ".tmp");
+        try (OutputStream output = new FileOutputStream(temporary))
+        {
+            output.write(data);
+        }
+
+        if (!temporary.renameTo(file))
+        {
+            file.delete();
+            if (!temporary.renameTo(file))
+            {
+                throw new IOException("Could not replace " + file);
+            }
+        }
+    }
+
+    static String readAll(InputStream input) throws IOException
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            while ((bytesRead = input.read(buffer)) != -1)
+            {
+                bytes.write(buffer, 0, bytesRead);
+            }
+
+            return new String(bytes.toByteArray(), utf8);
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+}
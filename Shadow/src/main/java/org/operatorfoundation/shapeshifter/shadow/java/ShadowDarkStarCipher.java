@@ -1,11 +1,9 @@
 package org.operatorfoundation.shapeshifter.shadow.java;
 
 import android.os.Build;
-import com.google.common.primitives.UnsignedLong;
 import org.bouncycastle.jcajce.spec.AEADParameterSpec;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.spec.AlgorithmParameterSpec;
@@ -14,14 +12,17 @@ import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.GCMParameterSpec;
 
 public class ShadowDarkStarCipher extends ShadowCipher
 {
     SecretKey key;
-    UnsignedLong longCounter = UnsignedLong.ZERO;
+    NonceCounter nonceCounter = new NonceCounter();
     String cipherType = "AES_256/GCM/NoPadding";
     String cipherProvider = "BC";
+    byte[] lengthBytes = new byte[2];
+    ByteBuffer lengthBuffer = ByteBuffer.wrap(lengthBytes);
 
     // ShadowCipher contains the encryption and decryption methods.
     public ShadowDarkStarCipher(SecretKey key) throws NoSuchAlgorithmException
@@ -48,42 +49,58 @@ public class ShadowDarkStarCipher extends ShadowCipher
     // [encrypted payload length][length tag] + [encrypted payload][payload tag]
     // Pack takes the data above and packs them into a singular byte array.
     public byte[] pack(byte[] plaintext) throws Exception
+    {
+        byte[] packed = new byte[packedSize(plaintext.length)];
+        pack(ByteBuffer.wrap(plaintext), ByteBuffer.wrap(packed));
+
+        return packed;
+    }
+
+    // Packs the remaining bytes of plaintext straight into output at its current position, without intermediate arrays.
+    // Either buffer may be heap or direct, but they must not overlap. Both buffers are advanced past the bytes used.
+    public void pack(ByteBuffer plaintext, ByteBuffer output) throws Exception
+    {
+        prepareLength(plaintext, output);
+
+        // encrypt the big endian length and then the payload directly into the output, adding a tag to each
+        crypt(Cipher.ENCRYPT_MODE, nonceCounter.next(), lengthBuffer, output);
+        crypt(Cipher.ENCRYPT_MODE, nonceCounter.next(), plaintext, output);
+    }
+
+    // Packs like pack(ByteBuffer, ByteBuffer), using the two nonces reserved with reserveNonces that start at nonce.
+    // The shared counter is not touched, so this may run on a forked cipher while the original keeps going.
+    public void pack(long nonce, ByteBuffer plaintext, ByteBuffer output) throws Exception
+    {
+        prepareLength(plaintext, output);
+
+        crypt(Cipher.ENCRYPT_MODE, nonceCounter.at(nonce), lengthBuffer, output);
+        crypt(Cipher.ENCRYPT_MODE, nonceCounter.at(nonce + 1), plaintext, output);
+    }
+
+    // Checks that the frame fits and puts the plaintext length into the length buffer, encoded in big endian.
+    void prepareLength(ByteBuffer plaintext, ByteBuffer output) throws Exception
     {
         // find the length of plaintext
-        int plaintextLength = plaintext.length;
-        if (plaintextLength > Short.MAX_VALUE) {
+        int plaintextLength = plaintext.remaining();
+        if (plaintextLength > Short.MAX_VALUE)
+        {
             throw new IllegalBlockSizeException();
         }
 
-        // turn the length into two shorts and put them into an array
-        // this is encoded in big endian
-        short shortPlaintextLength = (short) plaintextLength;
-        short leftShort = (short) (shortPlaintextLength / 256);
-        short rightShort = (short) (shortPlaintextLength % 256);
-        byte leftByte = (byte) (leftShort);
-        byte rightByte = (byte) (rightShort);
-        byte[] lengthBytes = {leftByte, rightByte};
-
-        // encrypt the length and the payload, adding a tag to each
-        byte[] encryptedLengthBytes = encrypt(lengthBytes);
-        byte[] encryptedPayload = encrypt(plaintext);
+        if (output.remaining() < packedSize(plaintextLength))
+        {
+            throw new ShortBufferException();
+        }
 
-        return Utility.plusEqualsByteArray(encryptedLengthBytes, encryptedPayload);
+        lengthBytes[0] = (byte) (plaintextLength >> 8);
+        lengthBytes[1] = (byte) plaintextLength;
+        lengthBuffer.clear();
     }
 
     // Encrypts the data and increments the nonce counter.
     byte[] encrypt(byte[] plaintext) throws Exception
     {
-        AlgorithmParameterSpec ivSpec;
-        byte[] nonce = nonce();
-
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
-            ivSpec = new GCMParameterSpec(tagSizeBits, nonce);
-        } else {
-            ivSpec = new AEADParameterSpec(nonce, tagSizeBits);
-        }
-
-        cipher.init(Cipher.ENCRYPT_MODE, key, ivSpec);
+        initCipher(Cipher.ENCRYPT_MODE, nonceCounter.next());
 
         return cipher.doFinal(plaintext);
     }
@@ -91,99 +108,167 @@ public class ShadowDarkStarCipher extends ShadowCipher
     // Decrypts data and increments the nonce counter.
     public byte[] decrypt(byte[] encrypted) throws Exception
     {
-        AlgorithmParameterSpec ivSpec;
-        byte[] nonce = nonce();
+        initCipher(Cipher.DECRYPT_MODE, nonceCounter.next());
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P)
+        try {
+            return cipher.doFinal(encrypted);
+        }
+        catch (Exception decryptError)
         {
-            ivSpec = new GCMParameterSpec(tagSizeBits, nonce);
+            ShadowMetrics.decryptionFailed();
+            throw new DarkStarDecryptionException();
+        }
+    }
+
+    // Decrypts the remaining bytes of encrypted straight into output at its current position and increments the nonce counter.
+    // Both buffers are advanced past the bytes used. Returns the plaintext length.
+    public int decrypt(ByteBuffer encrypted, ByteBuffer output) throws Exception
+    {
+        // a short output must fail before the nonce is used, so the frame can be retried with more room
+        checkOutputSize(Cipher.DECRYPT_MODE, encrypted, output);
+        return crypt(Cipher.DECRYPT_MODE, nonceCounter.next(), encrypted, output);
+    }
+
+    // Decrypts the remaining bytes of the buffer in place and increments the nonce counter.
+    // On return the buffer's position is unchanged and its limit marks the end of the plaintext.
+    public int decryptInPlace(ByteBuffer buffer) throws Exception
+    {
+        return decryptInPlace(nonceCounter.next(), buffer);
+    }
+
+    // Decrypts the remaining bytes of the buffer in place using a nonce reserved with reserveNonces.
+    // The shared counter is not touched, so this may run on a forked cipher while the original keeps going.
+    public int decryptInPlace(long nonce, ByteBuffer buffer) throws Exception
+    {
+        return decryptInPlace(nonceCounter.at(nonce), buffer);
+    }
+
+    // Reserves count consecutive nonces and returns the first counter value, so frames can be processed out of line.
+    public long reserveNonces(int count) throws Exception
+    {
+        return nonceCounter.reserve(count);
+    }
+
+    // Returns a cipher with the same key but its own Cipher instance, for using reserved nonces on another thread.
+    public ShadowCipher fork() throws Exception
+    {
+        return new ShadowDarkStarCipher(key);
+    }
+
+    int decryptInPlace(byte[] nonce, ByteBuffer buffer) throws Exception
+    {
+        int start = buffer.position();
+        int plaintextLength;
+
+        if (buffer.hasArray())
+        {
+            // the array form of doFinal may read and write the same region
+            int offset = buffer.arrayOffset() + start;
+            plaintextLength = crypt(Cipher.DECRYPT_MODE, nonce, buffer.array(), offset, buffer.remaining(), buffer.array(), offset);
         }
         else
         {
-            ivSpec = new AEADParameterSpec(nonce, tagSizeBits);
+            plaintextLength = crypt(Cipher.DECRYPT_MODE, nonce, buffer, buffer.duplicate());
         }
 
-        cipher.init(Cipher.DECRYPT_MODE, key, ivSpec);
+        buffer.position(start);
+        buffer.limit(start + plaintextLength);
 
-        try {
-            return cipher.doFinal(encrypted);
+        return plaintextLength;
+    }
+
+    // Runs one cipher operation over the remaining bytes of input, writing the result at output's position.
+    // Heap buffers go through the array form of doFinal so no temporary arrays are needed.
+    int crypt(int mode, byte[] nonce, ByteBuffer input, ByteBuffer output) throws Exception
+    {
+        // the array form of doFinal only knows the array's length, not output's limit
+        checkOutputSize(mode, input, output);
+
+        if (input.hasArray() && output.hasArray())
+        {
+            int produced = crypt(
+                    mode,
+                    nonce,
+                    input.array(), input.arrayOffset() + input.position(), input.remaining(),
+                    output.array(), output.arrayOffset() + output.position());
+            input.position(input.limit());
+            output.position(output.position() + produced);
+
+            return produced;
         }
-        catch (Exception decryptError)
+
+        initCipher(mode, nonce);
+
+        try
         {
-            throw new DarkStarDecryptionException();
+            return cipher.doFinal(input, output);
+        }
+        catch (Exception cryptError)
+        {
+            throw cryptFailure(mode, cryptError);
         }
     }
 
-    @Override
-    public byte[] nonce() throws Exception
+    // Runs one cipher operation over an array slice, writing the result into output at outputOffset.
+    int crypt(int mode, byte[] nonce, byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset) throws Exception
+    {
+        initCipher(mode, nonce);
+
+        try
+        {
+            return cipher.doFinal(input, inputOffset, inputLength, output, outputOffset);
+        }
+        catch (Exception cryptError)
+        {
+            throw cryptFailure(mode, cryptError);
+        }
+    }
+
+    // Throws ShortBufferException if output has no room for the result of running mode over input.
+    static void checkOutputSize(int mode, ByteBuffer input, ByteBuffer output) throws ShortBufferException
     {
-        // NIST Special Publication 800-38D - Recommendation for Block Cipher Modes of Operation: Galois/Counter Mode (GCM) and GMAC
-        // https://nvlpubs.nist.gov/nistpubs/Legacy/SP/nistspecialpublication800-38d.pdf
-        // Section 8.2.1 - Deterministic Construction
-        // Applicable to nonces of 96 bytes or less.
-
-        /*
-         In the deterministic construction, the IV is the concatenation of two
-         fields, called the fixed field and the invocation field. The fixed field
-         shall identify the device, or, more generally, the context for the
-         instance of the authenticated encryption function. The invocation field
-         shall identify the sets of inputs to the authenticated encryption
-         function in that particular device.
-
-         For any given key, no two distinct devices shall share the same fixed
-         field, and no two distinct sets of inputs to any single device shall
-         share the same invocation field. Compliance with these two requirements
-         implies compliance with the uniqueness requirement on IVs in Sec. 8.
-
-         If desired, the fixed field itself may be constructed from two or more
-         smaller fields. Moreover, one of those smaller fields could consist of
-         bits that are arbitrary (i.e., not necessarily deterministic nor unique
-         to the device), as long as the remaining bits ensure that the fixed
-         field is not repeated in its entirety for some other device with the
-         same key.
-
-         Similarly, the entire fixed field may consist of arbitrary bits when
-         there is only one context to identify, such as when a fresh key is
-         limited to a single session of a communications protocol. In this case,
-         if different participants in the session share a common fixed field,
-         then the protocol shall ensure that the invocation fields are distinct
-         for distinct data inputs.
-        */
-
-        ByteBuffer buffer = ByteBuffer.allocate(12);
-        buffer.order(ByteOrder.BIG_ENDIAN);
-        buffer.put((byte) 0x1A);
-        buffer.put((byte) 0x1A);
-        buffer.put((byte) 0x1A);
-        buffer.put((byte) 0x1A);
-        /*
-         The invocation field typically is either 1) an integer counter or 2) a
-         linear feedback shift register that is driven by a primitive polynomial
-         to ensure a maximal cycle length. In either case, the invocation field
-         increments upon each invocation of the authenticated encryption
-         function.
-
-         The lengths and positions of the fixed field and the invocation field
-         shall be fixed for each supported IV length for the life of the key. In
-         order to promote interoperability for the default IV length of 96 bits,
-         this Recommendation suggests, but does not require, that the leading
-         (i.e., leftmost) 32 bits of the IV hold the fixed field; and that the
-         trailing (i.e., rightmost) 64 bits hold the invocation field.
-        */
-
-        buffer.putLong(longCounter.longValue());
-
-        if (longCounter.compareTo(UnsignedLong.MAX_VALUE) == -1)
-        {
-            // a < b = -1   a > b = 0
-            longCounter = longCounter.plus(UnsignedLong.ONE);
+        int outputSize = mode == Cipher.ENCRYPT_MODE ? input.remaining() + tagSize : input.remaining() - tagSize;
+        if (output.remaining() < outputSize)
+        {
+            throw new ShortBufferException();
+        }
+    }
+
+    // Failed tag checks surface as DarkStarDecryptionException, like decrypt(byte[]).
+    static Exception cryptFailure(int mode, Exception cryptError)
+    {
+        if (mode == Cipher.DECRYPT_MODE && !(cryptError instanceof ShortBufferException))
+        {
+            ShadowMetrics.decryptionFailed();
+            return new DarkStarDecryptionException();
+        }
+
+        return cryptError;
+    }
+
+    // Initializes the cipher with the given nonce.
+    // The parameter spec copies the nonce, so the counter's shared array is safe to reuse.
+    void initCipher(int mode, byte[] nonce) throws Exception
+    {
+        AlgorithmParameterSpec ivSpec;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P)
+        {
+            ivSpec = new GCMParameterSpec(tagSizeBits, nonce);
         }
         else
         {
-            throw new Exception("64 bit nonce counter overflow");
+            ivSpec = new AEADParameterSpec(nonce, tagSizeBits);
         }
 
-        return buffer.array();
+        cipher.init(mode, key, ivSpec);
     }
-}
 
+    // Create a nonce using our counter.
+    // Returns a copy, since the counter's own array is reused for every frame.
+    @Override
+    public byte[] nonce() throws Exception
+    {
+        return nonceCounter.next().clone();
+    }
+}
@@ -0,0 +1,77 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+// ShadowEndpoint is one configured Shadow server together with what we have learned about it:
+// a smoothed connect and handshake time, and whether recent dials have been failing.
+public class ShadowEndpoint
+{
+    // How long an endpoint is avoided after its first failure. Each further failure in a row adds the same again, up to maxFailurePenalty times.
+    static final long failureCooldownMillis = 30 * 1000;
+    static final int maxFailurePenalty = 8;
+
+    final ShadowConfig shadowConfig;
+    final String host;
+    final int port;
+
+    // Guarded by this endpoint's lock.
+    long smoothedHandshakeNanos = -1;
+    int consecutiveFailures;
+    long unhealthyUntil;
+
+    public ShadowEndpoint(ShadowConfig config, String host, int port)
+    {
+        this.shadowConfig = config;
+        this.host = host;
+        this.port = port;
+    }
+
+    public ShadowConfig getConfig()
+    {
+        return shadowConfig;
+    }
+
+    public String getHost()
+    {
+        return host;
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+
+    // The smoothed time to connect and handshake, in milliseconds, or -1 if no dial has succeeded yet.
+    public synchronized double handshakeMillis()
+    {
+        return smoothedHandshakeNanos < 0 ? -1 : smoothedHandshakeNanos / 1e6;
+    }
+
+    public synchronized boolean isHealthy(long now)
+    {
+        return now >= unhealthyUntil;
+    }
+
+    synchronized long smoothedHandshakeNanos()
+    {
+        return smoothedHandshakeNanos;
+    }
+
+    // Folds a successful dial into the average, weighting the new sample by 1/4 as TCP does for its RTT estimate.
+    synchronized void recordSuccess(long handshakeNanos)
+    {
+        smoothedHandshakeNanos = smoothedHandshakeNanos < 0 ? handshakeNanos : (smoothedHandshakeNanos * 3 + handshakeNanos) / 4;
+        consecutiveFailures = 0;
+        unhealthyUntil = 0;
+    }
+
+    synchronized void recordFailure(long now)
+    {
+        consecutiveFailures++;
+        unhealthyUntil = now + failureCooldownMillis * Math.min(consecutiveFailures, maxFailurePenalty);
+    }
+
+    @Override
+    public String toString()
+    {
+        return host + ":" + port;
+    }
+}
@@ -5,34 +5,197 @@ import android.util.Log;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
 // This abstract class is the superclass of all classes representing an input stream of bytes.
 public class ShadowInputStream extends InputStream {
+    public static final int defaultReadAheadSize = 64 * 1024;
+
     InputStream networkInputStream;
     ShadowCipher decryptionCipher;
     ShadowSocket shadowSocket;
-    byte[] buffer = new byte[0];
     boolean decryptionFailed = false;
     boolean firstRead = true;
+    volatile boolean closed = false;
+
+    // Encrypted bytes pulled from the network in large chunks. Frames are parsed out of readAhead[readAheadStart, readAheadEnd).
+    byte[] readAhead;
+    ByteBuffer readAheadBuffer;
+    int readAheadStart = 0;
+    int readAheadEnd = 0;
+
+    // The decrypted length of the next frame once its header has been parsed, or -1 while the header is still unread.
+    int pendingPayloadLength = -1;
+
+    // Payloads too large for the caller's array are decrypted here.
+    // The plaintext that has not been handed to the caller yet is plaintext[plaintextStart, plaintextEnd).
+    byte[] plaintext = new byte[ShadowCipher.maxPayloadSize];
+    int plaintextStart = 0;
+    int plaintextEnd = 0;
+
+    final byte[] singleByte = new byte[1];
+
+    // Set once pipelined reads are enabled. From then on only the pipeline's network thread touches the read-ahead buffer.
+    volatile FramePipeline pipeline;
 
+    // Counts the frames this stream receives. A ShadowSocket shares its own stats with its streams.
+    ShadowSocketStats stats = new ShadowSocketStats();
 
     // Applications that need to define a subclass of InputStream must always provide a method that returns the next byte of input.
     public ShadowInputStream(ShadowSocket shadowSocket, InputStream networkInputStream, ShadowCipher decryptionCipher) {
+        this(shadowSocket, networkInputStream, decryptionCipher, defaultReadAheadSize);
+    }
+
+    // readAheadSize is how many encrypted bytes a single network read may pull in. It is raised to fit at least one full frame.
+    public ShadowInputStream(ShadowSocket shadowSocket, InputStream networkInputStream, ShadowCipher decryptionCipher, int readAheadSize) {
         this.networkInputStream = networkInputStream;
         this.decryptionCipher = decryptionCipher;
         this.shadowSocket = shadowSocket;
+        this.readAhead = new byte[Math.max(readAheadSize, ShadowCipher.packedSize(ShadowCipher.maxPayloadSize))];
+        this.readAheadBuffer = ByteBuffer.wrap(readAhead);
+    }
+
+    // Moves network reads and decryption onto background threads, with up to queueDepth frames in flight at each stage.
+    // Reads then usually find their plaintext already decrypted. Pipelining stays on until the stream is closed,
+    // including across a redial.
+    public synchronized void enablePipelinedReads(int queueDepth) throws IOException
+    {
+        if (pipeline != null)
+        {
+            return;
+        }
+
+        startPipeline(queueDepth);
+    }
+
+    void startPipeline(int queueDepth) throws IOException
+    {
+        try
+        {
+            pipeline = new FramePipeline(this, queueDepth);
+            pipeline.start();
+        }
+        catch (Exception pipelineError)
+        {
+            Log.e("ShadowInputStream", "Could not start the read pipeline.");
+            pipelineError.printStackTrace();
+            pipeline = null;
+            throw new IOException();
+        }
     }
 
+    // Switches to a new connection, discarding anything read from the old one.
+    // A running pipeline is stopped, and restarted on the new connection once its network thread has finished.
+    synchronized void attach(InputStream networkInputStream, ShadowCipher decryptionCipher) throws IOException
+    {
+        FramePipeline oldPipeline = pipeline;
+        if (oldPipeline != null)
+        {
+            // closing the old connection ends a network read in progress, so the thread can be joined
+            oldPipeline.stop();
+            closeQuietly(this.networkInputStream);
+            oldPipeline.join();
+            pipeline = null;
+        }
+
+        this.networkInputStream = networkInputStream;
+        this.decryptionCipher = decryptionCipher;
+        readAheadStart = 0;
+        readAheadEnd = 0;
+        pendingPayloadLength = -1;
+        plaintextStart = 0;
+        plaintextEnd = 0;
+
+        if (oldPipeline != null)
+        {
+            startPipeline(oldPipeline.queueDepth);
+        }
+    }
+
+    // Closes the connection first, so the pipeline's network thread is not left blocked in a read, then wakes any reader.
     @Override
     public void close() throws IOException {
-        networkInputStream.close();
+        closed = true;
+
+        try
+        {
+            networkInputStream.close();
+        }
+        finally
+        {
+            if (pipeline != null)
+            {
+                pipeline.stop();
+            }
+        }
+    }
+
+    static void closeQuietly(InputStream stream)
+    {
+        try
+        {
+            stream.close();
+        }
+        catch (IOException closeError)
+        {
+            // already closed
+        }
+    }
+
+    // Returns the number of plaintext bytes that can be read without blocking.
+    // This counts the unread plaintext plus the payload of the next frame if it has already arrived in full.
+    @Override
+    public int available() throws IOException
+    {
+        int available = plaintextEnd - plaintextStart;
+
+        if (pipeline != null)
+        {
+            return available + pipeline.available();
+        }
+
+        try
+        {
+            if (pendingPayloadLength == -1 && readAheadEnd - readAheadStart >= ShadowCipher.lengthWithTagSize)
+            {
+                parseLength();
+            }
+        }
+        catch (Exception readError)
+        {
+            throw readFailure(readError);
+        }
+
+        if (pendingPayloadLength != -1 && readAheadEnd - readAheadStart >= pendingPayloadLength + ShadowCipher.tagSize)
+        {
+            available += pendingPayloadLength;
+        }
+
+        return available;
     }
 
     // Reads some number of bytes from the input stream and stores them into the buffer array b.
     @Override
     public int read(byte[] outputBuffer) throws IOException
     {
+        if (outputBuffer == null)
+        {
+            Log.e("ShadowInputStream.read", "read was given an empty or null byte array.");
+            return 0;
+        }
+
+        return read(outputBuffer, 0, outputBuffer.length);
+    }
+
+    // Reads up to len bytes of data from the input stream into b, starting at b[off].
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (closed)
+        {
+            Log.e("ShadowInputStream.read", "Read from a closed stream.");
+            throw new IOException();
+        }
+
         if (decryptionFailed)
         {
             Log.e("ShadowInputStream.read", "Decryption failed on read.");
@@ -40,82 +203,216 @@ public class ShadowInputStream extends InputStream {
             throw new IOException();
         }
 
-        if (outputBuffer == null || outputBuffer.length == 0)
+        if (b == null || len == 0)
         {
             Log.e("ShadowInputStream.read", "read was given an empty or null byte array.");
             return 0;
         }
 
-        // if the class buffer already has data, put it in the output buffer
-        int returnSize = outputBuffer.length;
-        int bufferSize = buffer.length;
-
-        if (returnSize <= bufferSize)
+        // only go to the network once the previous frame has been handed off
+        while (plaintextStart == plaintextEnd)
         {
-            System.arraycopy(buffer, 0, outputBuffer, 0, returnSize);
-            buffer = Arrays.copyOfRange(buffer, returnSize, bufferSize);
+            if (pipeline != null)
+            {
+                return pipeline.read(b, off, len);
+            }
 
-            return outputBuffer.length;
+            int bytesDecrypted = readFrame(b, off, len);
+            if (bytesDecrypted != 0)
+            {
+                return bytesDecrypted;
+            }
         }
-        else if (bufferSize > 0)
-        {
-            // we were passed an array that is bigger than what we already stored in the buffer
-            // but the buffer isn't empty, so lets pass what's in our buffer back to the caller
-            System.arraycopy(buffer, 0, outputBuffer, 0, bufferSize);
 
-            // Empty our buffer now that we've handed off all of the data in it
-            buffer = new byte[0];
+        // take bytes out of the current frame
+        int resultSize = Math.min(len, plaintextEnd - plaintextStart);
+        System.arraycopy(plaintext, plaintextStart, b, off, resultSize);
+        plaintextStart += resultSize;
+
+        return resultSize;
+    }
 
-            return outputBuffer.length;
+    // Reads the next byte of data from the input stream.
+    @Override
+    public int read() throws IOException
+    {
+        int bytesRead = read(singleByte, 0, 1);
+        if (bytesRead == -1)
+        {
+            return -1;
         }
 
+        return singleByte[0] & 0xFF;
+    }
+
+    // Decrypts one frame out of the read-ahead buffer, reading from the network only if the frame has not fully arrived.
+    // When b[off, off + len) can hold the whole payload, it is decrypted straight into b and its length is returned.
+    // Otherwise it is decrypted into the plaintext array for later reads and 0 is returned.
+    // Returns -1 at the end of the stream.
+    int readFrame(byte[] b, int off, int len) throws IOException
+    {
         try
         {
-            //get encrypted length
-            int lengthDataSize = ShadowCipher.lengthWithTagSize;
-            Log.d("ShadowInputStream.read", "attempting to read length data.");
+            if (pendingPayloadLength == -1)
+            {
+                //get encrypted length
+                Log.d("ShadowInputStream.read", "attempting to read length data.");
+                if (!fillReadAhead(ShadowCipher.lengthWithTagSize))
+                {
+                    Log.e("ShadowInputStream.read", "Could not read encrypted length bytes.");
+                    return -1;
+                }
+                Log.d("ShadowInputStream.read", "read length data.");
 
-            // read bytes up to the size of encrypted lengthSize into a byte buffer
-            byte[] encryptedLengthData = Utility.readNBytes(networkInputStream, lengthDataSize);
-            if (encryptedLengthData == null)
+                parseLength();
+            }
+
+            //read and decrypt payload with the resulting length
+            int payloadLength = pendingPayloadLength;
+            int encryptedPayloadSize = payloadLength + ShadowCipher.tagSize;
+            if (!fillReadAhead(encryptedPayloadSize))
             {
-                Log.e("ShadowInputStream.read", "Could not read encrypted length bytes.");
+                Log.e("ShadowInputStream.read", "Could not read encrypted length data.");
                 return -1;
             }
-            Log.d("ShadowInputStream.read", "read length data.");
 
-            //decrypt encrypted length to find out payload length
-            byte[] lengthData = decryptionCipher.decrypt(encryptedLengthData);
-            firstRead = false;
-            Log.d("ShadowInputStream.read", "Length bytes decrypted.");
+            readAheadBuffer.limit(readAheadStart + encryptedPayloadSize);
+            readAheadBuffer.position(readAheadStart);
+            readAheadStart += encryptedPayloadSize;
+            pendingPayloadLength = -1;
 
-            // change lengthData from BigEndian representation to int length
-            int payloadLength = Utility.getIntFromBigEndian(lengthData);
-            Log.d("Shadow.DecryptedLength", Integer.toString(payloadLength));
+            if (len >= payloadLength)
+            {
+                // the caller has room for the whole payload, so skip our own copy of the plaintext
+                long start = System.nanoTime();
+                decryptionCipher.decrypt(readAheadBuffer, ByteBuffer.wrap(b, off, len));
+                stats.recordDecrypt(System.nanoTime() - start);
+                stats.recordFrameReceived(payloadLength);
+                Log.i("ShadowInputStream.read", "Payload decrypted.");
+
+                return payloadLength;
+            }
 
-            //read and decrypt payload with the resulting length
-            byte[] encryptedPayload = Utility.readNBytes(networkInputStream, payloadLength + ShadowCipher.tagSize);
-            if (encryptedPayload == null)
+            if (payloadLength > plaintext.length)
             {
-                Log.e("ShadowInputStream.read", "Could not read encrypted length data.");
-                return -1;
+                // the peer sent a larger frame than we do, so make room for it
+                plaintext = new byte[payloadLength];
             }
 
-            byte[] payload;
-            payload = decryptionCipher.decrypt(encryptedPayload);
+            long start = System.nanoTime();
+            decryptionCipher.decrypt(readAheadBuffer, ByteBuffer.wrap(plaintext));
+            stats.recordDecrypt(System.nanoTime() - start);
+            stats.recordFrameReceived(payloadLength);
             Log.i("ShadowInputStream.read", "Payload decrypted.");
 
-            // put payload into buffer
-            buffer = Utility.plusEqualsByteArray(buffer, payload);
-            int resultSize = Math.min(outputBuffer.length, buffer.length);
+            plaintextStart = 0;
+            plaintextEnd = payloadLength;
+
+            return 0;
+        }
+        catch (Exception readError)
+        {
+            throw readFailure(readError);
+        }
+    }
+
+    // Parses the next frame's header and copies its still encrypted payload into frame, reserving the payload's nonce.
+    // Runs on the pipeline's network thread. Returns false at the end of the stream.
+    boolean readEncryptedFrame(FramePipeline.Frame frame) throws Exception
+    {
+        if (pendingPayloadLength == -1)
+        {
+            if (!fillReadAhead(ShadowCipher.lengthWithTagSize))
+            {
+                Log.e("ShadowInputStream.read", "Could not read encrypted length bytes.");
+                return false;
+            }
+
+            parseLength();
+        }
+
+        int encryptedPayloadSize = pendingPayloadLength + ShadowCipher.tagSize;
+        if (!fillReadAhead(encryptedPayloadSize))
+        {
+            Log.e("ShadowInputStream.read", "Could not read encrypted length data.");
+            return false;
+        }
+
+        frame.prepare(encryptedPayloadSize);
+        frame.nonce = decryptionCipher.reserveNonces(1);
+        System.arraycopy(readAhead, readAheadStart, frame.data, 0, encryptedPayloadSize);
+        readAheadStart += encryptedPayloadSize;
+        pendingPayloadLength = -1;
+
+        return true;
+    }
+
+    // Decrypts the length header at the front of the read-ahead buffer.
+    void parseLength() throws Exception
+    {
+        readAheadBuffer.limit(readAheadEnd);
+        readAheadBuffer.position(readAheadStart);
+
+        //decrypt encrypted length to find out payload length
+        long start = System.nanoTime();
+        pendingPayloadLength = decryptionCipher.unpackLength(readAheadBuffer);
+        stats.recordDecrypt(System.nanoTime() - start);
+        readAheadStart += ShadowCipher.lengthWithTagSize;
+        firstRead = false;
+        Log.d("ShadowInputStream.read", "Length bytes decrypted.");
+        Log.d("Shadow.DecryptedLength", Integer.toString(pendingPayloadLength));
+    }
+
+    // Makes sure at least needed unparsed bytes are in the read-ahead buffer.
+    // Each network read asks for all of the free space, so one read can bring in many frames. Returns false if the stream ends first.
+    boolean fillReadAhead(int needed) throws IOException
+    {
+        int unparsed = readAheadEnd - readAheadStart;
+        if (unparsed >= needed)
+        {
+            return true;
+        }
+
+        if (readAhead.length - readAheadStart < needed)
+        {
+            // move the partial frame to the front, growing the buffer if the peer's frame is larger than it
+            byte[] destination = readAhead;
+            if (needed > readAhead.length)
+            {
+                destination = new byte[needed];
+            }
+
+            System.arraycopy(readAhead, readAheadStart, destination, 0, unparsed);
+            if (destination != readAhead)
+            {
+                readAhead = destination;
+                readAheadBuffer = ByteBuffer.wrap(readAhead);
+            }
+
+            readAheadStart = 0;
+            readAheadEnd = unparsed;
+        }
 
-            // take bytes out of buffer.
-            System.arraycopy(buffer, 0, outputBuffer, 0, resultSize);
-            buffer = Arrays.copyOfRange(buffer, resultSize, buffer.length);
+        while (readAheadEnd - readAheadStart < needed)
+        {
+            int bytesRead = networkInputStream.read(readAhead, readAheadEnd, readAhead.length - readAheadEnd);
+            if (bytesRead == -1)
+            {
+                Log.e("readNBytes", "Could not read the specified number of bytes.");
+                return false;
+            }
 
-            return resultSize;
+            readAheadEnd += bytesRead;
         }
-        catch (DarkStarDecryptionException decryptError)
+
+        return true;
+    }
+
+    // Handles a failed frame read and returns the exception to throw.
+    // A decryption failure on the very first frame redials, any later one closes the connection for good.
+    IOException readFailure(Exception readError)
+    {
+        if (readError instanceof DarkStarDecryptionException)
         {
             Log.e("ShadowInputStream.read", "Decryption failed.");
 
@@ -124,6 +421,7 @@ public class ShadowInputStream extends InputStream {
                 if (firstRead)
                 {
                     // Try to redial
+                    stats.recordRedial();
                     shadowSocket.dial(shadowSocket.shadowConfig, shadowSocket.host, shadowSocket.port);
                 }
                 else
@@ -132,7 +430,7 @@ public class ShadowInputStream extends InputStream {
                     decryptionFailed = true;
                     shadowSocket.close();
                     Log.e("ShadowInputStream.read", "Decryption Error, closing the connection.");
-                    throw new IOException();
+                    return new IOException();
                 }
             }
             catch (Exception dialError)
@@ -140,54 +438,27 @@ public class ShadowInputStream extends InputStream {
                 // If the redial fails, give up
                 Log.e("ShadowInputStream.read", "Received an Exception.");
                 dialError.printStackTrace();
-                throw new IOException();
+                return new IOException();
             }
 
-            throw new IOException();
+            return new IOException();
         }
-        catch (Exception readError)
+
+        if (readError instanceof IOException) // the network read failed
         {
-            if (readError instanceof IOException) // readNBytes failed
+            Log.e("ShadowInputStream.read", "Received an IOException.");
+
+            try
             {
-                Log.e("ShadowInputStream.read", "Received an IOException.");
                 shadowSocket.close();
             }
-
-            readError.printStackTrace();
-            throw new IOException();
-        }
-
-    }
-
-    @Override
-    public int read(byte[] b, int off, int len) throws IOException
-    {
-        if (b != null && b.length != 0)
-        {
-            byte[] readbuf = new byte[len];
-            int buflen = read(readbuf);
-            System.arraycopy(readbuf, off, b, 0, buflen);
-
-            return buflen;
-        }
-        else
-        {
-            return 0;
+            catch (IOException closeError)
+            {
+                closeError.printStackTrace();
+            }
         }
-    }
 
-    // Reads the next byte of data from the input stream.
-    @Override
-    public int read() throws IOException
-    {
-        byte[] result = new byte[0];
-
-        // read bytes up to payload length (4)
-        read(result);
-
-        return ByteBuffer.wrap(result).getInt();
+        readError.printStackTrace();
+        return new IOException();
     }
-
-
 }
-
@@ -0,0 +1,292 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// ShadowMetrics adds up what every ShadowSocket, ShadowSocketFactory and Bloom in the process is doing: how many
+// connections are open, how often handshakes succeed and fail, how often frames fail to decrypt, and how long
+// connecting and handshaking take. Counters are striped so busy threads do not contend on them.
+// Take a snapshot to read them, as JSON for logs and dashboards, or register the MXBean to watch them over JMX.
+public final class ShadowMetrics
+{
+    static final String objectName = "org.operatorfoundation.shapeshifter.shadow:type=ShadowMetrics";
+
+    static final StripedCounter activeConnections = new StripedCounter();
+    static final StripedCounter connectionsOpened = new StripedCounter();
+    static final StripedCounter handshakes = new StripedCounter();
+    static final StripedCounter handshakeFailures = new StripedCounter();
+    static final StripedCounter duplicateSalts = new StripedCounter();
+    static final StripedCounter decryptionFailures = new StripedCounter();
+    static final RateMeter handshakeRate = new RateMeter();
+    static final LatencyHistogram connectLatency = new LatencyHistogram();
+    static final LatencyHistogram handshakeLatency = new LatencyHistogram();
+
+    private ShadowMetrics()
+    {
+    }
+
+    // Reads every counter. The values are read one after another, so under load they may be a few events apart.
+    public static Snapshot snapshot()
+    {
+        return new Snapshot(System.currentTimeMillis());
+    }
+
+    // Publishes the metrics to the platform MBean server. Returns false where there is no JMX, as on Android.
+    // JMX is reached by reflection so the library still loads on runtimes that lack it.
+    public static synchronized boolean registerMBean()
+    {
+        try
+        {
+            Object server = Class.forName("java.lang.management.ManagementFactory").getMethod("getPlatformMBeanServer").invoke(null);
+            Class<?> serverClass = Class.forName("javax.management.MBeanServer");
+            Class<?> objectNameClass = Class.forName("javax.management.ObjectName");
+            Object name = objectNameClass.getConstructor(String.class).newInstance(objectName);
+
+            if (!(Boolean) serverClass.getMethod("isRegistered", objectNameClass).invoke(server, name))
+            {
+                serverClass.getMethod("registerMBean", Object.class, objectNameClass).invoke(server, new MBean(), name);
+            }
+
+            return true;
+        }
+        catch (Exception jmxError)
+        {
+            Log.i("ShadowMetrics", "JMX is not available: " + jmxError);
+            return false;
+        }
+    }
+
+    public static synchronized void unregisterMBean()
+    {
+        try
+        {
+            Object server = Class.forName("java.lang.management.ManagementFactory").getMethod("getPlatformMBeanServer").invoke(null);
+            Class<?> serverClass = Class.forName("javax.management.MBeanServer");
+            Class<?> objectNameClass = Class.forName("javax.management.ObjectName");
+            Object name = objectNameClass.getConstructor(String.class).newInstance(objectName);
+
+            if ((Boolean) serverClass.getMethod("isRegistered", objectNameClass).invoke(server, name))
+            {
+                serverClass.getMethod("unregisterMBean", objectNameClass).invoke(server, name);
+            }
+        }
+        catch (Exception jmxError)
+        {
+            Log.i("ShadowMetrics", "JMX is not available: " + jmxError);
+        }
+    }
+
+    static void connectionOpened()
+    {
+        activeConnections.increment();
+        connectionsOpened.increment();
+    }
+
+    static void connectionClosed()
+    {
+        activeConnections.decrement();
+    }
+
+    static void connected(long nanos)
+    {
+        connectLatency.record(nanos);
+    }
+
+    static void handshakeSucceeded(long nanos)
+    {
+        handshakes.increment();
+        handshakeRate.mark(System.currentTimeMillis());
+        handshakeLatency.record(nanos);
+    }
+
+    static void handshakeFailed()
+    {
+        handshakeFailures.increment();
+    }
+
+    static void duplicateSalt()
+    {
+        duplicateSalts.increment();
+    }
+
+    static void decryptionFailed()
+    {
+        decryptionFailures.increment();
+    }
+
+    // A point in time reading of every metric. Gson writes the fields as they are named here.
+    public static class Snapshot
+    {
+        public final long takenAtMillis;
+        public final long activeConnections;
+        public final long connectionsOpened;
+        public final long handshakes;
+        public final long handshakeFailures;
+        public final long duplicateSalts;
+        public final long decryptionFailures;
+        public final double handshakesPerSecond;
+        public final Latency connectLatency;
+        public final Latency handshakeLatency;
+
+        Snapshot(long now)
+        {
+            this.takenAtMillis = now;
+            this.activeConnections = ShadowMetrics.activeConnections.sum();
+            this.connectionsOpened = ShadowMetrics.connectionsOpened.sum();
+            this.handshakes = ShadowMetrics.handshakes.sum();
+            this.handshakeFailures = ShadowMetrics.handshakeFailures.sum();
+            this.duplicateSalts = ShadowMetrics.duplicateSalts.sum();
+            this.decryptionFailures = ShadowMetrics.decryptionFailures.sum();
+            this.handshakesPerSecond = handshakeRate.perSecond(now);
+            this.connectLatency = new Latency(ShadowMetrics.connectLatency);
+            this.handshakeLatency = new Latency(ShadowMetrics.handshakeLatency);
+        }
+
+        public String toJson()
+        {
+            return new Gson().toJson(this);
+        }
+    }
+
+    // Percentiles of a LatencyHistogram, in milliseconds.
+    public static class Latency
+    {
+        public final long count;
+        public final double meanMillis;
+        public final double p50Millis;
+        public final double p90Millis;
+        public final double p99Millis;
+        public final double maxMillis;
+
+        Latency(LatencyHistogram histogram)
+        {
+            this.count = histogram.count();
+            this.meanMillis = histogram.meanMicros() / 1000;
+            this.p50Millis = histogram.percentile(0.5) / 1000.0;
+            this.p90Millis = histogram.percentile(0.9) / 1000.0;
+            this.p99Millis = histogram.percentile(0.99) / 1000.0;
+            this.maxMillis = histogram.maxMicros() / 1000.0;
+        }
+    }
+
+    // Counts events in one second slots over the last minute. A slot is reset by the first event of a new second,
+    // and an event racing that reset can be lost, so the rate is close rather than exact.
+    static class RateMeter
+    {
+        static final int windowSeconds = 60;
+
+        final AtomicLongArray counts = new AtomicLongArray(windowSeconds);
+        final AtomicLongArray seconds = new AtomicLongArray(windowSeconds);
+        final long startSecond = System.currentTimeMillis() / 1000;
+
+        void mark(long nowMillis)
+        {
+            long second = nowMillis / 1000;
+            int slot = (int) (second % windowSeconds);
+
+            long slotSecond = seconds.get(slot);
+            if (slotSecond != second && seconds.compareAndSet(slot, slotSecond, second))
+            {
+                counts.set(slot, 0);
+            }
+
+            counts.incrementAndGet(slot);
+        }
+
+        // The average rate over the last minute, or since the meter was created if that is sooner.
+        double perSecond(long nowMillis)
+        {
+            long second = nowMillis / 1000;
+            long total = 0;
+            for (int slot = 0; slot < windowSeconds; slot++)
+            {
+                long slotSecond = seconds.get(slot);
+                if (slotSecond <= second && second - slotSecond < windowSeconds)
+                {
+                    total += counts.get(slot);
+                }
+            }
+
+            long window = Math.max(1, Math.min(windowSeconds, second - startSecond + 1));
+            return (double) total / window;
+        }
+    }
+
+    static class MBean implements ShadowMetricsMXBean
+    {
+        @Override
+        public long getActiveConnections()
+        {
+            return activeConnections.sum();
+        }
+
+        @Override
+        public long getConnectionsOpened()
+        {
+            return connectionsOpened.sum();
+        }
+
+        @Override
+        public long getHandshakes()
+        {
+            return handshakes.sum();
+        }
+
+        @Override
+        public long getHandshakeFailures()
+        {
+            return handshakeFailures.sum();
+        }
+
+        @Override
+        public long getDuplicateSalts()
+        {
+            return duplicateSalts.sum();
+        }
+
+        @Override
+        public long getDecryptionFailures()
+        {
+            return decryptionFailures.sum();
+        }
+
+        @Override
+        public double getHandshakesPerSecond()
+        {
+            return handshakeRate.perSecond(System.currentTimeMillis());
+        }
+
+        @Override
+        public double getConnectMillisP50()
+        {
+            return connectLatency.percentile(0.5) / 1000.0;
+        }
+
+        @Override
+        public double getConnectMillisP99()
+        {
+            return connectLatency.percentile(0.99) / 1000.0;
+        }
+
+        @Override
+        public double getHandshakeMillisP50()
+        {
+            return handshakeLatency.percentile(0.5) / 1000.0;
+        }
+
+        @Override
+        public double getHandshakeMillisP99()
+        {
+            return handshakeLatency.percentile(0.99) / 1000.0;
+        }
+
+        @Override
+        public String getJson()
+        {
+            return snapshot().toJson();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+// The view of ShadowMetrics that ShadowMetrics.registerMBean publishes over JMX. Latencies are in milliseconds.
+public interface ShadowMetricsMXBean
+{
+    long getActiveConnections();
+
+    long getConnectionsOpened();
+
+    long getHandshakes();
+
+    long getHandshakeFailures();
+
+    long getDuplicateSalts();
+
+    long getDecryptionFailures();
+
+    double getHandshakesPerSecond();
+
+    double getConnectMillisP50();
+
+    double getConnectMillisP99();
+
+    double getHandshakeMillisP50();
+
+    double getHandshakeMillisP99();
+
+    // The whole snapshot, as ShadowMetrics.Snapshot.toJson writes it.
+    String getJson();
+}
@@ -0,0 +1,511 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// ShadowMultiplexer carries many independent streams over one connection, usually a ShadowSocket, so they all share
+// one TCP connection and one DarkStar handshake. Both ends must run a ShadowMultiplexer, one as the client and one as the server.
+//
+// Every mux frame is [stream id: 4 bytes][type: 1 byte][payload length: 2 bytes][payload], big endian. A whole mux
+// frame fits in one DarkStar frame. Each stream has a receive window in each direction that the reader grants back
+// with WINDOW_UPDATE as the application consumes data, so a stream nobody reads cannot stall the others.
+// The writer sends one frame from each stream that has data in turn.
+public class ShadowMultiplexer implements Closeable
+{
+    static final byte typeOpen = 0;
+    static final byte typeData = 1;
+    static final byte typeWindowUpdate = 2;
+    static final byte typeClose = 3;
+    static final byte typeReset = 4;
+
+    static final int headerSize = 7;
+    static final int maxFramePayload = ShadowCipher.maxPayloadSize - headerSize;
+
+    public static final int defaultWindowSize = 256 * 1024;
+    public static final int defaultSendBufferSize = 64 * 1024;
+
+    // How long close waits for data that is already queued to be sent.
+    public static volatile long closeTimeoutMillis = 5000;
+
+    final Socket socket;
+    final InputStream input;
+    final OutputStream output;
+    final boolean isClient;
+    final int windowSize;
+    final int sendBufferSize;
+
+    // Everything below is guarded by this multiplexer's lock.
+    int nextStreamId;
+    final HashMap<Integer, MultiplexedSocket> streams = new HashMap<>();
+    final ArrayDeque<MultiplexedSocket> acceptQueue = new ArrayDeque<>();
+    final ArrayDeque<byte[]> controlFrames = new ArrayDeque<>();
+    final ArrayDeque<MultiplexedSocket> readyStreams = new ArrayDeque<>();
+    boolean closing;
+    boolean closed;
+    IOException failure;
+
+    // True while the writer is sending a frame it has taken off the queues.
+    boolean writing;
+
+    final Thread readerThread;
+    final Thread writerThread;
+
+    // Multiplexes streams over socket. One end of the connection must be the client and the other the server.
+    public ShadowMultiplexer(Socket socket, boolean isClient) throws IOException
+    {
+        this(socket, socket.getInputStream(), socket.getOutputStream(), isClient, defaultWindowSize, defaultSendBufferSize);
+    }
+
+    public ShadowMultiplexer(InputStream input, OutputStream output, boolean isClient)
+    {
+        this(null, input, output, isClient, defaultWindowSize, defaultSendBufferSize);
+    }
+
+    ShadowMultiplexer(Socket socket, InputStream input, OutputStream output, boolean isClient, int windowSize, int sendBufferSize)
+    {
+        this.socket = socket;
+        this.input = input;
+        this.output = output;
+        this.isClient = isClient;
+        this.windowSize = windowSize;
+        this.sendBufferSize = sendBufferSize;
+
+        // clients open odd numbered streams and servers even ones, so the two ends never pick the same id
+        this.nextStreamId = isClient ? 1 : 2;
+
+        this.readerThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                readFrames();
+            }
+        }, "ShadowMultiplexer reader");
+        this.writerThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                writeFrames();
+            }
+        }, "ShadowMultiplexer writer");
+        this.readerThread.setDaemon(true);
+        this.writerThread.setDaemon(true);
+        this.readerThread.start();
+        this.writerThread.start();
+    }
+
+    // Opens a new stream to the other end. This does not wait for a round trip.
+    public synchronized MultiplexedSocket openStream() throws IOException
+    {
+        if (closing || closed)
+        {
+            throw closedError();
+        }
+
+        int id = nextStreamId;
+        nextStreamId += 2;
+
+        MultiplexedSocket stream = new MultiplexedSocket(this, id);
+        streams.put(id, stream);
+        sendControl(id, typeOpen, -1);
+
+        return stream;
+    }
+
+    // Waits for the other end to open a stream and returns it.
+    public synchronized MultiplexedSocket accept() throws IOException
+    {
+        while (acceptQueue.isEmpty())
+        {
+            if (closed)
+            {
+                throw closedError();
+            }
+
+            waitForChange();
+        }
+
+        return acceptQueue.poll();
+    }
+
+    // The number of streams that have not finished closing in both directions.
+    public synchronized int streamCount()
+    {
+        return streams.size();
+    }
+
+    public synchronized boolean isClosed()
+    {
+        return closed;
+    }
+
+    // Closes every stream and then the underlying connection. Data the streams have already written is sent first,
+    // along with their CLOSE frames, waiting up to closeTimeoutMillis for it to go out.
+    @Override
+    public void close() throws IOException
+    {
+        synchronized (this)
+        {
+            if (!closed && !closing)
+            {
+                closing = true;
+                for (MultiplexedSocket stream : new ArrayList<>(streams.values()))
+                {
+                    stream.outputShutdown = true;
+                    schedule(stream);
+                }
+
+                long deadline = System.currentTimeMillis() + closeTimeoutMillis;
+                long wait;
+                while (!closed && hasUnsentFrames() && (wait = deadline - System.currentTimeMillis()) > 0)
+                {
+                    try
+                    {
+                        wait(wait);
+                    }
+                    catch (InterruptedException interrupted)
+                    {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+
+                if (!closed && hasUnsentFrames())
+                {
+                    Log.e("ShadowMultiplexer", "Closing with data still unsent.");
+                }
+            }
+        }
+
+        fail(null);
+    }
+
+    // True while the writer has frames queued or in progress. Data held back by a closed send window does not count.
+    boolean hasUnsentFrames()
+    {
+        return writing || !controlFrames.isEmpty() || !readyStreams.isEmpty();
+    }
+
+    void readFrames()
+    {
+        DataInputStream frames = new DataInputStream(input);
+        byte[] payload = new byte[65535];
+
+        try
+        {
+            while (true)
+            {
+                int id = frames.readInt();
+                byte type = frames.readByte();
+                int length = frames.readUnsignedShort();
+                frames.readFully(payload, 0, length);
+
+                synchronized (this)
+                {
+                    receive(id, type, payload, length);
+                }
+            }
+        }
+        catch (EOFException endOfStream)
+        {
+            fail(new EOFException("The multiplexed connection was closed."));
+        }
+        catch (IOException readError)
+        {
+            fail(readError);
+        }
+    }
+
+    void writeFrames()
+    {
+        byte[] frame = new byte[headerSize + maxFramePayload];
+
+        try
+        {
+            while (true)
+            {
+                int length;
+                boolean more;
+
+                synchronized (this)
+                {
+                    if (writing)
+                    {
+                        // the previous frame has been written, and flushed if it was the last
+                        writing = false;
+                        if (closing)
+                        {
+                            notifyAll();
+                        }
+                    }
+
+                    while (!closed && controlFrames.isEmpty() && readyStreams.isEmpty())
+                    {
+                        wait();
+                    }
+
+                    if (closed)
+                    {
+                        return;
+                    }
+
+                    byte[] control = controlFrames.poll();
+                    if (control != null)
+                    {
+                        System.arraycopy(control, 0, frame, 0, control.length);
+                        length = control.length;
+                    }
+                    else
+                    {
+                        MultiplexedSocket stream = readyStreams.poll();
+                        stream.scheduled = false;
+                        if (!stream.hasFrameToSend())
+                        {
+                            // reset while it waited its turn
+                            continue;
+                        }
+
+                        length = stream.takeFrame(frame);
+                        schedule(stream);
+                        retireIfDone(stream);
+                        notifyAll();
+                    }
+
+                    more = !controlFrames.isEmpty() || !readyStreams.isEmpty();
+                    writing = true;
+                }
+
+                output.write(frame, 0, length);
+                if (!more)
+                {
+                    output.flush();
+                }
+            }
+        }
+        catch (IOException writeError)
+        {
+            fail(writeError);
+        }
+        catch (InterruptedException stopped)
+        {
+            fail(null);
+        }
+    }
+
+    // Handles one frame from the other end.
+    void receive(int id, byte type, byte[] payload, int length)
+    {
+        MultiplexedSocket stream = streams.get(id);
+
+        switch (type)
+        {
+            case typeOpen:
+                if (stream != null || ((id & 1) == 1) == isClient)
+                {
+                    protocolError("The other end opened stream " + id + " which is not available.");
+                    return;
+                }
+
+                stream = new MultiplexedSocket(this, id);
+                streams.put(id, stream);
+                acceptQueue.add(stream);
+                break;
+
+            case typeData:
+                if (stream == null)
+                {
+                    // the stream was reset, so its data can be dropped
+                    return;
+                }
+
+                if (stream.inputShutdown)
+                {
+                    stream.consumed(length);
+                }
+                else if (length > stream.inbound.remaining())
+                {
+                    Log.e("ShadowMultiplexer", "Stream " + id + " overran its window. Resetting it.");
+                    reset(stream);
+                }
+                else
+                {
+                    stream.inbound.put(payload, 0, length);
+                }
+                break;
+
+            case typeWindowUpdate:
+                if (stream != null && length == 4)
+                {
+                    stream.sendWindow += ((payload[0] & 0xFF) << 24) | ((payload[1] & 0xFF) << 16) | ((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF);
+                    schedule(stream);
+                }
+                break;
+
+            case typeClose:
+                if (stream != null)
+                {
+                    stream.remoteClosed = true;
+                    retireIfDone(stream);
+                }
+                break;
+
+            case typeReset:
+                if (stream != null)
+                {
+                    stream.reset = true;
+                    streams.remove(id);
+                }
+                break;
+
+            default:
+                protocolError("Unknown mux frame type " + type);
+                return;
+        }
+
+        notifyAll();
+    }
+
+    // Queues a control frame ahead of all data. A negative value sends no payload.
+    void sendControl(int id, byte type, int value)
+    {
+        byte[] frame = new byte[value < 0 ? headerSize : headerSize + 4];
+        writeHeader(frame, id, type, frame.length - headerSize);
+        if (value >= 0)
+        {
+            frame[headerSize] = (byte) (value >>> 24);
+            frame[headerSize + 1] = (byte) (value >>> 16);
+            frame[headerSize + 2] = (byte) (value >>> 8);
+            frame[headerSize + 3] = (byte) value;
+        }
+
+        controlFrames.add(frame);
+        notifyAll();
+    }
+
+    // Puts a stream in the writer's rotation if it has something it is allowed to send.
+    void schedule(MultiplexedSocket stream)
+    {
+        if (!stream.scheduled && stream.hasFrameToSend())
+        {
+            stream.scheduled = true;
+            readyStreams.add(stream);
+            notifyAll();
+        }
+    }
+
+    void reset(MultiplexedSocket stream)
+    {
+        stream.reset = true;
+        streams.remove(stream.id);
+        sendControl(stream.id, typeReset, -1);
+    }
+
+    // Forgets a stream once both ends have closed it.
+    void retireIfDone(MultiplexedSocket stream)
+    {
+        if (stream.closeSent && stream.remoteClosed)
+        {
+            streams.remove(stream.id);
+        }
+    }
+
+    // Shuts the multiplexer down like any other failure, so streams blocked in read or write are woken and fail.
+    void protocolError(String message)
+    {
+        Log.e("ShadowMultiplexer", message);
+        fail(new IOException(message));
+    }
+
+    // Shuts the multiplexer down. Streams that were not closed by the other end see error as their failure.
+    void fail(IOException error)
+    {
+        synchronized (this)
+        {
+            if (closed)
+            {
+                return;
+            }
+
+            closed = true;
+            failure = error;
+            for (MultiplexedSocket stream : new ArrayList<>(streams.values()))
+            {
+                if (!stream.remoteClosed)
+                {
+                    stream.reset = true;
+                }
+            }
+            notifyAll();
+        }
+
+        closeConnection();
+    }
+
+    void closeConnection()
+    {
+        try
+        {
+            if (socket != null)
+            {
+                socket.close();
+            }
+            else
+            {
+                input.close();
+                output.close();
+            }
+        }
+        catch (IOException closeError)
+        {
+            // already closed
+        }
+    }
+
+    IOException closedError()
+    {
+        return failure != null ? new IOException("The multiplexed connection failed.", failure) : new IOException("The multiplexed connection is closed.");
+    }
+
+    // Waits on this multiplexer's lock, turning an interrupt into an InterruptedIOException.
+    void waitForChange() throws IOException
+    {
+        waitForChange(0);
+    }
+
+    // Like waitForChange, but gives up after millis milliseconds. 0 waits forever.
+    void waitForChange(long millis) throws IOException
+    {
+        try
+        {
+            wait(millis);
+        }
+        catch (InterruptedException interrupted)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    static void writeHeader(byte[] frame, int id, byte type, int length)
+    {
+        frame[0] = (byte) (id >>> 24);
+        frame[1] = (byte) (id >>> 16);
+        frame[2] = (byte) (id >>> 8);
+        frame[3] = (byte) id;
+        frame[4] = type;
+        frame[5] = (byte) (length >>> 8);
+        frame[6] = (byte) length;
+    }
+}
@@ -4,13 +4,71 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 // This abstract class is the superclass of all classes representing an output stream of bytes.
 public class ShadowOutputStream extends OutputStream {
     OutputStream outputStream;
     ShadowCipher encryptionCipher;
-    byte[] buffer = new byte[0];
+
+    // Plaintext gathered for the next frame while coalescing.
+    final byte[] buffer = new byte[ShadowCipher.maxPayloadSize];
+    int bufferCount = 0;
+
+    // Reused space for one packed frame.
+    final byte[] frame = new byte[ShadowCipher.packedSize(ShadowCipher.maxPayloadSize)];
+
+    boolean coalescing = false;
+    long maxFlushDelayMillis = 0;
+    ScheduledFuture<?> scheduledFlush;
+
+    // The timer only hands due flushes to the flush pool, so a stream stuck in a network write cannot hold up the others.
+    static ScheduledExecutorService flushTimer;
+    static ExecutorService flushPool;
+
+    // Held while writing to the network. Frames are sealed under the stream's own lock, but a timed flush
+    // writes under this lock alone, so it never holds the stream's lock while the network is slow.
+    final Object wireLock = new Object();
+
+    // Frames sealed by a timed flush and not yet written. Whoever holds wireLock next writes them first,
+    // so frames reach the network in the order their nonces were used.
+    final ConcurrentLinkedQueue<byte[]> unsentFrames = new ConcurrentLinkedQueue<>();
+
+    // Set if a timed flush failed. The next write or flush throws it, since the buffered data was lost with it.
+    volatile IOException timedFlushFailure;
+
+    // Set if a parallel seal failed after its batch's nonces were reserved. The peer would reject every later frame,
+    // so writes and flushes throw from then on.
+    volatile IOException sealFailure;
+
+    // Writes of at least this many bytes are sealed on several cores at once. 0 turns parallel sealing off.
+    int parallelSealThreshold = 0;
+
+    // One forked cipher per worker, so each worker has a Cipher instance of its own.
+    ShadowCipher[] sealCiphers;
+
+    // Reused space for a batch of frames sealed in parallel.
+    byte[] sealedFrames = new byte[0];
+
+    static final int parallelSealBatchFrames = 64;
+    static ExecutorService sealPool;
+
+    // Counts the frames this stream sends. A ShadowSocket shares its own stats with its streams.
+    ShadowSocketStats stats = new ShadowSocketStats();
 
     // An output stream accepts output bytes and sends them to some sink.
     public ShadowOutputStream(OutputStream outputStream, ShadowCipher encryptionCipher) {
@@ -18,60 +76,487 @@ public class ShadowOutputStream extends OutputStream {
         this.encryptionCipher = encryptionCipher;
     }
 
+    // When coalescing, writes are gathered into frames of up to maxPayloadSize bytes.
+    // A frame is only sent when it is full, on flush(), or once maxFlushDelayMillis has passed since the first buffered byte.
+    // A delay of 0 disables the timed flush. Turning coalescing off sends anything already buffered.
+    public synchronized void setCoalescing(boolean enabled, long maxFlushDelayMillis) throws IOException
+    {
+        if (!enabled)
+        {
+            flush();
+        }
+
+        this.coalescing = enabled;
+        this.maxFlushDelayMillis = maxFlushDelayMillis;
+    }
+
+    // Seals writes of at least thresholdBytes on all available cores. A threshold of 0 turns this off.
+    // The frames of such a write get a range of nonces reserved up front, are encrypted concurrently, and are sent in order.
+    public synchronized void setParallelSeal(int thresholdBytes)
+    {
+        this.parallelSealThreshold = thresholdBytes;
+    }
+
+    // Switches to a new connection. Frames sealed for the old one are dropped; buffered plaintext is kept.
+    synchronized void attach(OutputStream outputStream, ShadowCipher encryptionCipher)
+    {
+        synchronized (wireLock)
+        {
+            this.outputStream = outputStream;
+            this.encryptionCipher = encryptionCipher;
+            this.sealCiphers = null;
+            unsentFrames.clear();
+            timedFlushFailure = null;
+            sealFailure = null;
+        }
+    }
+
     @Override
     public void close() throws IOException {
-        outputStream.close();
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            outputStream.close();
+        }
     }
 
     // Writes the specified byte to this output stream.
     @Override
     public void write(int b) throws IOException {
-        byte[] plainText = new byte[b];
-        write(plainText);
+        write(new byte[]{(byte) b}, 0, 1);
     }
 
     // Writes b.length bytes from the specified byte array to this output stream.
     @Override
     public void write(byte[] b) throws IOException {
-        if (b != null && b.length > 0) {
-
-            // put into buffer
-            buffer = Utility.plusEqualsByteArray(buffer, b);
-            int offset = 0;
-            while (offset < buffer.length) {
-                int numBytesToSend = Math.min(ShadowCipher.maxPayloadSize, buffer.length - offset);
-
-                // take bytes out of buffer
-                byte[] bytesToSend = new byte[numBytesToSend];
-                System.arraycopy(buffer, offset, bytesToSend, 0, numBytesToSend);
-
-                byte[] cipherText = new byte[0];
-                try {
-                    cipherText = encryptionCipher.pack(bytesToSend);
-                } catch (Exception e) {
-                    Log.e("write", "Failed to pack bytes.");
-                    e.printStackTrace();
-                }
-                outputStream.write(cipherText);
-                outputStream.flush();
+        if (b != null) {
+            write(b, 0, b.length);
+        }
+    }
 
-                offset += numBytesToSend;
+    // Writes len bytes from the specified byte array starting at offset off to this output stream.
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        throwIfFailed();
+
+        if (b == null || len <= 0) {
+            return;
+        }
+
+        int end = off + len;
+
+        if (useParallelSeal(len) && bufferCount == 0)
+        {
+            // in coalescing mode any partial frame at the end is left for the buffer
+            int sealLength = coalescing ? len - len % ShadowCipher.maxPayloadSize : len;
+            sendFramesInParallel(b, off, sealLength);
+            off += sealLength;
+
+            if (!coalescing)
+            {
+                flushNetwork();
                 Log.i("write", "Write successful.");
+                return;
             }
         }
-    }
 
-    @Override
-    public void write(byte[] b, int off, int len) throws IOException {
-        if (b != null && b.length != 0) {
-            byte[] buf = Arrays.copyOfRange(b, off, len);
-            write(buf);
+        if (!coalescing)
+        {
+            while (off < end)
+            {
+                int numBytesToSend = Math.min(ShadowCipher.maxPayloadSize, end - off);
+                sendFrame(b, off, numBytesToSend);
+                off += numBytesToSend;
+            }
+
+            flushNetwork();
+            Log.i("write", "Write successful.");
+            return;
+        }
+
+        while (off < end)
+        {
+            if (bufferCount == 0 && end - off >= ShadowCipher.maxPayloadSize)
+            {
+                // a whole frame is available, so skip the copy into the buffer
+                sendFrame(b, off, ShadowCipher.maxPayloadSize);
+                off += ShadowCipher.maxPayloadSize;
+                continue;
+            }
+
+            int numBytesToBuffer = Math.min(buffer.length - bufferCount, end - off);
+            System.arraycopy(b, off, buffer, bufferCount, numBytesToBuffer);
+            bufferCount += numBytesToBuffer;
+            off += numBytesToBuffer;
+
+            if (bufferCount == buffer.length)
+            {
+                sendBuffer();
+            }
+        }
+
+        if (bufferCount > 0)
+        {
+            scheduleFlush();
         }
     }
 
     // Flushes this output stream and forces any buffered output bytes to be written out.
     @Override
-    public void flush() throws IOException {
-        outputStream.flush();
+    public synchronized void flush() throws IOException {
+        throwIfFailed();
+        sendBuffer();
+        flushNetwork();
+    }
+
+    // Packs the buffered plaintext into one frame and writes it to the network.
+    void sendBuffer() throws IOException
+    {
+        if (scheduledFlush != null)
+        {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+
+        if (bufferCount > 0)
+        {
+            int numBytesToSend = bufferCount;
+            bufferCount = 0;
+            sendFrame(buffer, 0, numBytesToSend);
+        }
+    }
+
+    // Packs one frame's worth of plaintext into the reused frame array and writes it to the network.
+    void sendFrame(byte[] plaintext, int offset, int length) throws IOException
+    {
+        sealFrame(plaintext, offset, length, frame);
+        writeToNetwork(frame, 0, ShadowCipher.packedSize(length));
+        stats.recordFrameSent(length);
+    }
+
+    // Packs plaintext into output, which must have room for the packed frame.
+    void sealFrame(byte[] plaintext, int offset, int length, byte[] output) throws IOException
+    {
+        try
+        {
+            long start = System.nanoTime();
+            encryptionCipher.pack(ByteBuffer.wrap(plaintext, offset, length), ByteBuffer.wrap(output));
+            stats.recordEncrypt(System.nanoTime() - start);
+        }
+        catch (Exception e)
+        {
+            Log.e("write", "Failed to pack bytes.");
+            e.printStackTrace();
+            throw new IOException();
+        }
+    }
+
+    // Writes sealed bytes to the network after any frames a timed flush left unsent.
+    void writeToNetwork(byte[] data, int offset, int length) throws IOException
+    {
+        synchronized (wireLock)
+        {
+            writeUnsentFrames();
+            outputStream.write(data, offset, length);
+        }
+    }
+
+    void flushNetwork() throws IOException
+    {
+        synchronized (wireLock)
+        {
+            writeUnsentFrames();
+            outputStream.flush();
+        }
+    }
+
+    // Called with wireLock held.
+    void writeUnsentFrames() throws IOException
+    {
+        byte[] unsent;
+        while ((unsent = unsentFrames.poll()) != null)
+        {
+            outputStream.write(unsent);
+        }
+    }
+
+    void throwIfFailed() throws IOException
+    {
+        IOException failure = timedFlushFailure;
+        if (failure != null)
+        {
+            throw new IOException("A timed flush failed.", failure);
+        }
+
+        failure = sealFailure;
+        if (failure != null)
+        {
+            throw new IOException("Sealing frames failed.", failure);
+        }
+    }
+
+    // Runs on the flush pool once the maximum flush delay has passed. The buffered plaintext is sealed under the
+    // stream's lock, which is quick, and written under wireLock alone.
+    void timedFlush()
+    {
+        try
+        {
+            synchronized (this)
+            {
+                scheduledFlush = null;
+                if (bufferCount == 0)
+                {
+                    return;
+                }
+
+                byte[] sealed = new byte[ShadowCipher.packedSize(bufferCount)];
+                sealFrame(buffer, 0, bufferCount, sealed);
+                unsentFrames.add(sealed);
+                stats.recordFrameSent(bufferCount);
+                bufferCount = 0;
+            }
+
+            flushNetwork();
+        }
+        catch (IOException flushError)
+        {
+            Log.e("ShadowOutputStream", "Timed flush failed.");
+            flushError.printStackTrace();
+            timedFlushFailure = flushError;
+        }
+    }
+
+    boolean useParallelSeal(int length)
+    {
+        return parallelSealThreshold > 0 && length >= parallelSealThreshold && length >= ShadowCipher.maxPayloadSize * 2 && Runtime.getRuntime().availableProcessors() > 1;
+    }
+
+    // Splits plaintext into full frames plus a final partial one and seals them on the worker pool, a batch at a time.
+    // Each frame's nonces come from a range reserved up front, so frame i of a batch uses the pair starting at firstNonce + 2i.
+    void sendFramesInParallel(byte[] plaintext, int offset, int length) throws IOException
+    {
+        int frameSize = ShadowCipher.packedSize(ShadowCipher.maxPayloadSize);
+        int end = offset + length;
+        boolean noncesReserved = false;
+
+        try
+        {
+            if (sealCiphers == null)
+            {
+                sealCiphers = new ShadowCipher[Runtime.getRuntime().availableProcessors()];
+                for (int index = 0; index < sealCiphers.length; index++)
+                {
+                    sealCiphers[index] = encryptionCipher.fork();
+                }
+            }
+
+            while (offset < end)
+            {
+                int batchLength = Math.min(end - offset, ShadowCipher.maxPayloadSize * parallelSealBatchFrames);
+                int frameCount = (batchLength + ShadowCipher.maxPayloadSize - 1) / ShadowCipher.maxPayloadSize;
+                if (sealedFrames.length < frameCount * frameSize)
+                {
+                    sealedFrames = new byte[frameCount * frameSize];
+                }
+
+                long firstNonce = encryptionCipher.reserveNonces(frameCount * 2);
+                noncesReserved = true;
+
+                // give each worker a contiguous run of frames, and seal the first run on this thread
+                int workers = Math.min(sealCiphers.length, frameCount);
+                List<Future<Void>> results = new ArrayList<>(workers);
+                for (int worker = 1; worker < workers; worker++)
+                {
+                    results.add(getSealPool().submit(sealTask(sealCiphers[worker], firstNonce, plaintext, offset, batchLength, frameCount * worker / workers, frameCount * (worker + 1) / workers)));
+                }
+
+                try
+                {
+                    sealTask(sealCiphers[0], firstNonce, plaintext, offset, batchLength, 0, frameCount / workers).call();
+                }
+                finally
+                {
+                    // the workers write into sealedFrames, so none may still be running when this write returns
+                    awaitAll(results);
+                }
+
+                // every frame but the last is full, so the sealed frames are already back to back
+                writeToNetwork(sealedFrames, 0, (frameCount - 1) * frameSize + ShadowCipher.packedSize(batchLength - (frameCount - 1) * ShadowCipher.maxPayloadSize));
+                offset += batchLength;
+            }
+        }
+        catch (IOException writeError)
+        {
+            throw writeError;
+        }
+        catch (Exception e)
+        {
+            Log.e("write", "Failed to pack bytes.");
+            e.printStackTrace();
+
+            if (noncesReserved)
+            {
+                // the batch's nonces are spent, so nothing sent after this would decrypt
+                sealFailure = new IOException(e);
+            }
+
+            throw new IOException();
+        }
+    }
+
+    // Waits for every seal task, even after one has failed, and rethrows the first failure.
+    static void awaitAll(List<Future<Void>> results) throws Exception
+    {
+        Exception failure = null;
+        boolean interrupted = false;
+
+        for (Future<Void> result : results)
+        {
+            while (true)
+            {
+                try
+                {
+                    result.get();
+                    break;
+                }
+                catch (InterruptedException interruptedError)
+                {
+                    interrupted = true;
+                }
+                catch (ExecutionException sealError)
+                {
+                    if (failure == null)
+                    {
+                        failure = sealError;
+                    }
+                    break;
+                }
+            }
+        }
+
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    // Seals frames [firstFrame, lastFrame) of a batch into their slots in sealedFrames.
+    Callable<Void> sealTask(final ShadowCipher cipher, final long firstNonce, final byte[] plaintext, final int batchOffset, final int batchLength, final int firstFrame, final int lastFrame)
+    {
+        return new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                long start = System.nanoTime();
+                int frameSize = ShadowCipher.packedSize(ShadowCipher.maxPayloadSize);
+                for (int frame = firstFrame; frame < lastFrame; frame++)
+                {
+                    int plaintextStart = frame * ShadowCipher.maxPayloadSize;
+                    int plaintextLength = Math.min(ShadowCipher.maxPayloadSize, batchLength - plaintextStart);
+                    cipher.pack(
+                            firstNonce + 2L * frame,
+                            ByteBuffer.wrap(plaintext, batchOffset + plaintextStart, plaintextLength),
+                            ByteBuffer.wrap(sealedFrames, frame * frameSize, frameSize));
+                    stats.recordFrameSent(plaintextLength);
+                }
+
+                stats.recordEncrypt(System.nanoTime() - start);
+                return null;
+            }
+        };
+    }
+
+    // All streams share one pool of sealing threads, sized to the number of cores.
+    static synchronized ExecutorService getSealPool()
+    {
+        if (sealPool == null)
+        {
+            sealPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "ShadowOutputStream seal");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return sealPool;
+    }
+
+    // Arranges for the buffered plaintext to be sent once the maximum flush delay has passed.
+    void scheduleFlush()
+    {
+        if (maxFlushDelayMillis <= 0 || scheduledFlush != null)
+        {
+            return;
+        }
+
+        scheduledFlush = getFlushTimer().schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                getFlushPool().execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        timedFlush();
+                    }
+                });
+            }
+        }, maxFlushDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // All coalescing streams share one daemon thread for their timed flushes.
+    static synchronized ScheduledExecutorService getFlushTimer()
+    {
+        if (flushTimer == null)
+        {
+            flushTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "ShadowOutputStream flush");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return flushTimer;
+    }
+
+    // Timed flushes run here, one thread per stream that is flushing, and idle threads go away after a minute.
+    static synchronized ExecutorService getFlushPool()
+    {
+        if (flushPool == null)
+        {
+            flushPool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "ShadowOutputStream timed flush");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return flushPool;
     }
 }
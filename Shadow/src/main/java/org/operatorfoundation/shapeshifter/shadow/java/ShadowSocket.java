@@ -16,6 +16,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 // This class implements client sockets (also called just "sockets").
 public class ShadowSocket extends Socket
@@ -33,7 +34,13 @@ public class ShadowSocket extends Socket
     String host;
     int port;
 
-    static Bloom bloom = new Bloom();
+    // Shared with this socket's streams and kept across redials.
+    final ShadowSocketStats stats = new ShadowSocketStats();
+
+    // Whether ShadowMetrics counts this socket as an active connection. A redial does not count it twice.
+    final AtomicBoolean active = new AtomicBoolean();
+
+    static final Bloom bloom = new Bloom();
 
     // Constructors:
 
@@ -47,10 +54,14 @@ public class ShadowSocket extends Socket
     public ShadowSocket(ShadowConfig config, String host, int port, InetAddress localAddr, int localPort) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException
     {
         this.shadowConfig = config;
-        this.socket = new Socket(host, port, localAddr, localPort);
+        InetAddress address = HostResolver.resolve(host);
+        long connectStart = System.nanoTime();
+        this.socket = new Socket(address, port, localAddr, localPort);
+        recordConnect(connectStart);
 
         try
         {
+            this.darkStar = new DarkStar(config, address, port);
             handshake();
             this.connectionStatus = true;
         }
@@ -68,10 +79,13 @@ public class ShadowSocket extends Socket
     // Creates a stream socket and connects it to the specified port number at the specified IP address.
     public ShadowSocket(ShadowConfig config, InetAddress address, int port) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
         this.shadowConfig = config;
+        long connectStart = System.nanoTime();
         this.socket = new Socket(address, port);
+        recordConnect(connectStart);
 
         try
         {
+            this.darkStar = new DarkStar(config, address, port);
             handshake();
             this.connectionStatus = true;
         }
@@ -89,10 +103,13 @@ public class ShadowSocket extends Socket
     // Creates a socket and connects it to the specified remote address on the specified remote port.
     public ShadowSocket(ShadowConfig config, InetAddress address, int port, InetAddress localAddr, int localPort) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
         this.shadowConfig = config;
+        long connectStart = System.nanoTime();
         this.socket = new Socket(address, port, localAddr, localPort);
+        recordConnect(connectStart);
 
         try
         {
+            this.darkStar = new DarkStar(config, address, port);
             handshake();
             this.connectionStatus = true;
         }
@@ -119,32 +136,37 @@ public class ShadowSocket extends Socket
         this.shadowConfig = config;
         this.host = host;
         this.port = port;
-        this.socket = new Socket(host, port);
+
+        // resolve once, race the addresses, and use the one that answered for the handshake
+        InetAddress[] addresses = HostResolver.resolveAll(host);
+        long connectStart = System.nanoTime();
+        this.socket = HappyEyeballs.connect(addresses, port);
+        recordConnect(connectStart);
 
         try
         {
-            this.darkStar = new DarkStar(config, host, port);
+            this.darkStar = new DarkStar(config, socket.getInetAddress(), port);
             handshake();
             this.connectionStatus = true;
 
             if (this.outputStream == null)
             {
                 this.outputStream = new ShadowOutputStream(socket.getOutputStream(), encryptionCipher);
+                this.outputStream.stats = stats;
             }
             else
             {
-                this.outputStream.outputStream = socket.getOutputStream();
-                this.outputStream.encryptionCipher = encryptionCipher;
+                this.outputStream.attach(socket.getOutputStream(), encryptionCipher);
             }
 
             if (this.inputStream == null)
             {
                 this.inputStream = new ShadowInputStream(this, socket.getInputStream(), decryptionCipher);
+                this.inputStream.stats = stats;
             }
             else
             {
-                this.inputStream.networkInputStream = socket.getInputStream();
-                this.inputStream.decryptionCipher = decryptionCipher;
+                this.inputStream.attach(socket.getInputStream(), decryptionCipher);
                 this.inputStream.shadowSocket = this;
             }
         }
@@ -171,6 +193,11 @@ public class ShadowSocket extends Socket
     public void close() throws IOException
     {
         Log.i("close", "Socket closed.");
+        if (active.compareAndSet(true, false))
+        {
+            ShadowMetrics.connectionClosed();
+        }
+
         socket.close();
     }
 
@@ -185,7 +212,9 @@ public class ShadowSocket extends Socket
         }
         else
         {
+            long connectStart = System.nanoTime();
             socket.connect(endpoint);
+            recordConnect(connectStart);
 
             try
             {
@@ -216,7 +245,9 @@ public class ShadowSocket extends Socket
         }
         else
         {
+            long connectStart = System.nanoTime();
             socket.connect(endpoint, timeout);
+            recordConnect(connectStart);
 
             try
             {
@@ -291,6 +322,24 @@ public class ShadowSocket extends Socket
         return outputStream;
     }
 
+    // Traffic, handshake timings and crypto time for this connection. The counters keep going across redials.
+    public ShadowSocketStats getStats()
+    {
+        return stats;
+    }
+
+    // Gathers small writes into full frames that are sent on flush(), when full, or after maxFlushDelayMillis.
+    public void setCoalescingWrites(boolean enabled, long maxFlushDelayMillis) throws IOException
+    {
+        outputStream.setCoalescing(enabled, maxFlushDelayMillis);
+    }
+
+    // Reads and decrypts incoming frames on background threads, keeping up to queueDepth frames ready ahead of the application.
+    public void enablePipelinedReads(int queueDepth) throws IOException
+    {
+        inputStream.enablePipelinedReads(queueDepth);
+    }
+
     // Returns the remote port number to which this socket is connected.
     @Override
     public int getPort() {
@@ -407,21 +456,56 @@ public class ShadowSocket extends Socket
     // Exchanges the handshakes.
     private void handshake() throws IOException, NoSuchAlgorithmException, InvalidKeySpecException
     {
-        byte[] handshakeBytes = darkStar.createHandshake();
-        sendHandshake(handshakeBytes);
+        long handshakeStart = System.nanoTime();
+        boolean succeeded = false;
 
         try
         {
-            receiveHandshake();
-            Log.i("ShadowSocket", "handshake completed");
+            long start = System.nanoTime();
+            byte[] handshakeBytes = darkStar.createHandshake();
+            stats.recordKeyDerivation(System.nanoTime() - start);
+
+            start = System.nanoTime();
+            sendHandshake(handshakeBytes);
+            stats.recordHandshakeSend(System.nanoTime() - start);
+
+            try
+            {
+                receiveHandshake();
+                succeeded = true;
+                Log.i("ShadowSocket", "handshake completed");
+            }
+            catch (NoSuchAlgorithmException | InvalidKeySpecException | InvalidKeyException e)
+            {
+                Log.e("ShadowSocket", "receiveHandshake error: ");
+                e.printStackTrace();
+            }
         }
-        catch (NoSuchAlgorithmException | InvalidKeySpecException | InvalidKeyException e)
+        finally
         {
-            Log.e("ShadowSocket", "receiveHandshake error: ");
-            e.printStackTrace();
+            if (succeeded)
+            {
+                ShadowMetrics.handshakeSucceeded(System.nanoTime() - handshakeStart);
+                if (active.compareAndSet(false, true))
+                {
+                    ShadowMetrics.connectionOpened();
+                }
+            }
+            else
+            {
+                ShadowMetrics.handshakeFailed();
+            }
         }
     }
 
+    // Records how long the TCP connection took to open, for this socket and for ShadowMetrics.
+    private void recordConnect(long connectStart)
+    {
+        long nanos = System.nanoTime() - connectStart;
+        stats.recordConnect(nanos);
+        ShadowMetrics.connected(nanos);
+    }
+
     // Sends the salt through the output stream.
     private void sendHandshake(byte[] handshakeBytes) throws IOException
     {
@@ -433,7 +517,9 @@ public class ShadowSocket extends Socket
     private void receiveHandshake() throws NoSuchAlgorithmException, IOException, InvalidKeySpecException, InvalidKeyException
     {
         int handshakeSize = ShadowCipher.handshakeSize;
+        long start = System.nanoTime();
         byte[] result = Utility.readNBytes(socket.getInputStream(), handshakeSize);
+        stats.recordHandshakeReceive(System.nanoTime() - start);
 
         if (result != null && result.length == handshakeSize)
         {
@@ -446,8 +532,10 @@ public class ShadowSocket extends Socket
             }
             else
             {
+                start = System.nanoTime();
                 this.decryptionCipher = darkStar.makeCipher(false, result);
                 this.encryptionCipher = darkStar.makeCipher(true, result);
+                stats.addKeyDerivation(System.nanoTime() - start);
                 Log.i("ShadowSocket", "Handshake received.");
             }
         }
@@ -464,4 +552,9 @@ public class ShadowSocket extends Socket
     static void loadBloom(String fileName) throws IOException {
         bloom.load(fileName);
     }
+
+    // Keeps the replay filter in a memory-mapped file from now on, so it survives restarts without a save.
+    static void mapBloom(String fileName) throws IOException {
+        bloom.map(fileName);
+    }
 }
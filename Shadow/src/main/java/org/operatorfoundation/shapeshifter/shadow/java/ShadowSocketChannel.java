@@ -0,0 +1,387 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+// ShadowSocketChannel is a non-blocking counterpart to ShadowSocket built on a java.nio SocketChannel.
+// The DarkStar handshake and the framing are driven from read, write and finishConnect, so a single thread with a
+// Selector can run many tunnels. Register the channel with register() and use interestOps() to pick the operations to wait for.
+public class ShadowSocketChannel implements ByteChannel
+{
+    static final int connecting = 0;
+    static final int sendingHandshake = 1;
+    static final int receivingHandshake = 2;
+    static final int established = 3;
+
+    public static final int defaultBufferSize = 64 * 1024;
+
+    final SocketChannel channel;
+    final ShadowConfig shadowConfig;
+    final InetAddress address;
+    final int port;
+    int state = connecting;
+
+    DarkStar darkStar;
+    DarkStarFrameEncoder encoder;
+    DarkStarFrameDecoder decoder;
+    ByteBuffer handshakeOut;
+    final ByteBuffer handshakeIn = ByteBuffer.allocate(ShadowCipher.handshakeSize);
+    final int bufferSize;
+
+    // Plaintext of a frame that did not fit in the caller's buffer, kept in read mode.
+    ByteBuffer plaintext = ByteBuffer.allocate(ShadowCipher.maxPayloadSize);
+
+    // Sealed frames waiting for the network, kept in write mode.
+    final ByteBuffer outbound;
+
+    ShadowSocketChannel(SocketChannel channel, ShadowConfig config, InetAddress address, int port, int bufferSize)
+    {
+        int frameSize = ShadowCipher.packedSize(ShadowCipher.maxPayloadSize);
+
+        this.channel = channel;
+        this.shadowConfig = config;
+        this.address = address;
+        this.port = port;
+        this.bufferSize = Math.max(bufferSize, frameSize);
+        this.outbound = ByteBuffer.allocate(this.bufferSize);
+        this.plaintext.flip();
+    }
+
+    // Opens a non-blocking channel and starts connecting to the Shadow server.
+    // Call finishConnect() when the channel is ready to connect, write or read until it returns true.
+    public static ShadowSocketChannel open(ShadowConfig config, String host, int port) throws IOException
+    {
+        InetAddress address = HostResolver.resolve(host);
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+
+        ShadowSocketChannel shadowChannel = new ShadowSocketChannel(channel, config, address, port, defaultBufferSize);
+
+        try
+        {
+            if (channel.connect(new InetSocketAddress(address, port)))
+            {
+                shadowChannel.finishConnect();
+            }
+        }
+        catch (IOException connectError)
+        {
+            channel.close();
+            throw connectError;
+        }
+
+        return shadowChannel;
+    }
+
+    // Advances the TCP connect and the DarkStar handshake as far as possible without blocking.
+    // Returns true once the tunnel is established.
+    public boolean finishConnect() throws IOException
+    {
+        try
+        {
+            if (state == connecting)
+            {
+                if (!channel.finishConnect())
+                {
+                    return false;
+                }
+
+                darkStar = new DarkStar(shadowConfig, address, port);
+                handshakeOut = ByteBuffer.wrap(darkStar.createHandshake());
+                state = sendingHandshake;
+            }
+
+            if (state == sendingHandshake)
+            {
+                channel.write(handshakeOut);
+                if (handshakeOut.hasRemaining())
+                {
+                    return false;
+                }
+
+                Log.i("ShadowSocketChannel", "Handshake sent.");
+                state = receivingHandshake;
+            }
+
+            if (state == receivingHandshake)
+            {
+                if (channel.read(handshakeIn) == -1)
+                {
+                    Log.e("ShadowSocketChannel", "Handshake was not received or was incorrect.");
+                    throw new IOException();
+                }
+
+                if (handshakeIn.hasRemaining())
+                {
+                    return false;
+                }
+
+                byte[] result = handshakeIn.array();
+                if (ShadowSocket.bloom.checkBloom(result))
+                {
+                    Log.e("ShadowSocketChannel", "A duplicate handshake was received. Closing the connection.");
+                    throw new IOException();
+                }
+
+                this.decoder = new DarkStarFrameDecoder(darkStar.makeCipher(false, result), bufferSize);
+                this.encoder = new DarkStarFrameEncoder(darkStar.makeCipher(true, result));
+                state = established;
+                Log.i("ShadowSocketChannel", "handshake completed");
+            }
+
+            return true;
+        }
+        catch (IOException handshakeError)
+        {
+            close();
+            throw handshakeError;
+        }
+        catch (Exception handshakeError)
+        {
+            Log.e("ShadowSocketChannel", "Handshake failed");
+            handshakeError.printStackTrace();
+            close();
+            throw new IOException();
+        }
+    }
+
+    // Returns true once the handshake has completed.
+    public boolean isEstablished()
+    {
+        return state == established;
+    }
+
+    // Returns the selection operations this channel is waiting on: connect or handshake progress, then reads,
+    // plus writes whenever sealed frames are still waiting for the network.
+    public int interestOps()
+    {
+        switch (state)
+        {
+            case connecting:
+                return SelectionKey.OP_CONNECT;
+            case sendingHandshake:
+                return SelectionKey.OP_WRITE;
+            case receivingHandshake:
+                return SelectionKey.OP_READ;
+            default:
+                return hasPendingWrites() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        }
+    }
+
+    // Registers the underlying SocketChannel with the selector. The key's channel is the raw SocketChannel,
+    // so keep this ShadowSocketChannel as (or in) the attachment.
+    public SelectionKey register(Selector selector, int ops, Object attachment) throws IOException
+    {
+        return channel.register(selector, ops, attachment);
+    }
+
+    public SelectableChannel configureBlocking(boolean block) throws IOException
+    {
+        return channel.configureBlocking(block);
+    }
+
+    public boolean isBlocking()
+    {
+        return channel.isBlocking();
+    }
+
+    // Returns the underlying channel, for selector bookkeeping only. Reading or writing it directly bypasses encryption.
+    public SocketChannel getSocketChannel()
+    {
+        return channel;
+    }
+
+    public SocketAddress getRemoteAddress()
+    {
+        return channel.socket().getRemoteSocketAddress();
+    }
+
+    // Reads decrypted bytes into dst. Only whole frames are decrypted, so this returns 0 in non-blocking mode when no
+    // complete frame has arrived yet. In blocking mode it waits for at least one byte. Returns -1 at the end of the stream.
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        if (state != established && !finishConnect())
+        {
+            return 0;
+        }
+
+        int total = 0;
+
+        while (dst.hasRemaining())
+        {
+            if (plaintext.hasRemaining())
+            {
+                total += transfer(plaintext, dst);
+                continue;
+            }
+
+            int decoded;
+            try
+            {
+                decoded = decodeFrame(dst);
+            }
+            catch (Exception decryptError)
+            {
+                Log.e("ShadowSocketChannel", "Decryption Error, closing the connection.");
+                decryptError.printStackTrace();
+                close();
+                throw new IOException();
+            }
+
+            if (decoded >= 0)
+            {
+                total += decoded;
+                continue;
+            }
+
+            // no complete frame is buffered, so go to the network unless we already have something to return
+            if (total > 0)
+            {
+                break;
+            }
+
+            int bytesRead = decoder.readFrom(channel);
+
+            if (bytesRead == -1)
+            {
+                return -1;
+            }
+
+            if (bytesRead == 0)
+            {
+                break;
+            }
+        }
+
+        return total;
+    }
+
+    // Seals as much of src as the outbound buffer can take and sends what the network accepts.
+    // Returns the number of plaintext bytes consumed, which in non-blocking mode may be 0 while earlier frames are still queued.
+    @Override
+    public int write(ByteBuffer src) throws IOException
+    {
+        if (state != established && !finishConnect())
+        {
+            return 0;
+        }
+
+        int consumed = 0;
+        flush();
+
+        while (src.hasRemaining())
+        {
+            try
+            {
+                consumed += encoder.encode(src, outbound);
+            }
+            catch (Exception packError)
+            {
+                Log.e("ShadowSocketChannel", "Failed to pack bytes.");
+                packError.printStackTrace();
+                throw new IOException();
+            }
+
+            if (!src.hasRemaining() || !channel.isBlocking())
+            {
+                break;
+            }
+
+            flush();
+        }
+
+        flush();
+
+        return consumed;
+    }
+
+    // Sends queued frames. Returns true when nothing is left waiting for the network.
+    public boolean flush() throws IOException
+    {
+        outbound.flip();
+        try
+        {
+            while (outbound.hasRemaining())
+            {
+                if (channel.write(outbound) == 0 && !channel.isBlocking())
+                {
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            outbound.compact();
+        }
+
+        return outbound.position() == 0;
+    }
+
+    public boolean hasPendingWrites()
+    {
+        return outbound.position() > 0;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        Log.i("close", "Channel closed.");
+        channel.close();
+    }
+
+    // Decrypts the next buffered frame into dst, or into the plaintext buffer if dst is too small.
+    // Returns the number of bytes put into dst, or -1 if the frame has not fully arrived.
+    int decodeFrame(ByteBuffer dst) throws Exception
+    {
+        int payloadLength = decoder.nextFrameLength();
+        if (payloadLength == -1)
+        {
+            return -1;
+        }
+
+        if (dst.remaining() >= payloadLength)
+        {
+            return decoder.decodeFrame(dst);
+        }
+
+        if (plaintext.capacity() < payloadLength)
+        {
+            plaintext = ByteBuffer.allocate(payloadLength);
+        }
+
+        plaintext.clear();
+        decoder.decodeFrame(plaintext);
+        plaintext.flip();
+
+        return transfer(plaintext, dst);
+    }
+
+    // Moves as many bytes as fit from source to destination.
+    static int transfer(ByteBuffer source, ByteBuffer destination)
+    {
+        int count = Math.min(source.remaining(), destination.remaining());
+        int limit = source.limit();
+        source.limit(source.position() + count);
+        destination.put(source);
+        source.limit(limit);
+
+        return count;
+    }
+}
@@ -1,13 +1,6 @@
 package org.operatorfoundation.shapeshifter.shadow.java;
 
-import android.os.Build;
-
-import androidx.annotation.RequiresApi;
-
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.URL;
@@ -16,8 +9,9 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
-import java.util.stream.Collectors;
 
 import com.google.gson.Gson;
 
@@ -46,48 +40,61 @@ public class ShadowSocketFactory extends SocketFactory
     final ShadowConfig shadowConfig;
     final String shadowHost;
     final int shadowPort;
+    final EndpointSelector endpoints;
+    volatile WarmSocketPool warmPool;
 
     public ShadowSocketFactory(ShadowConfig shadowConfig, String shadowHost, int shadowPort)
     {
-        this.shadowConfig = shadowConfig;
-        this.shadowHost = shadowHost;
-        this.shadowPort = shadowPort;
+        this(Collections.singletonList(new ShadowEndpoint(shadowConfig, shadowHost, shadowPort)));
+    }
+
+    // Spreads sockets over several servers, preferring the fastest healthy one and failing over when a server stops answering.
+    public ShadowSocketFactory(List<ShadowEndpoint> endpoints)
+    {
+        this.endpoints = new EndpointSelector(endpoints);
+        ShadowEndpoint first = this.endpoints.getEndpoints().get(0);
+        this.shadowConfig = first.shadowConfig;
+        this.shadowHost = first.host;
+        this.shadowPort = first.port;
     }
 
-    @RequiresApi(api = Build.VERSION_CODES.N)
     public ShadowSocketFactory(URL url, UUID uuid) throws IOException
     {
-        if (!url.getProtocol().equals("https")) {
-            System.out.println("protocol must be https");
-        }
+        this(parseEndpoints(ShadowConfigLoader.download(url), uuid));
+    }
 
-        String jsonText;
-        try (InputStream in = url.openStream())
-        {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-            jsonText = reader.lines().collect(Collectors.joining(System.lineSeparator()));
-        }
+    // Starts from the loader's cached config when there is one, so construction does not wait for the network.
+    public ShadowSocketFactory(ShadowConfigLoader loader, UUID uuid) throws IOException
+    {
+        this(parseEndpoints(loader.load(), uuid));
+    }
 
+    // Parses the JSON server config, keeping every server in the order given.
+    static List<ShadowEndpoint> parseEndpoints(String jsonText, UUID uuid)
+    {
         Gson gson = new Gson();
         JsonConfig.ShadowJsonConfig jsonConfig = gson.fromJson(jsonText, JsonConfig.ShadowJsonConfig.class);
-        JsonConfig.ServerConfig serverConfig = jsonConfig.servers.get(0);
 
-        UUID serverConfigUUID = UUID.fromString(serverConfig.id);
-
-        if (!serverConfigUUID.equals(uuid))
+        List<ShadowEndpoint> serverEndpoints = new ArrayList<>();
+        for (JsonConfig.ServerConfig serverConfig : jsonConfig.servers)
         {
-            System.out.println("ShadowSocketFactory init: UUIDs do not not match");
+            UUID serverConfigUUID = UUID.fromString(serverConfig.id);
+
+            if (!serverConfigUUID.equals(uuid))
+            {
+                System.out.println("ShadowSocketFactory init: UUIDs do not not match");
+            }
+
+            serverEndpoints.add(new ShadowEndpoint(new ShadowConfig(serverConfig.password, serverConfig.method), serverConfig.server, serverConfig.server_port));
         }
 
-        this.shadowConfig = new ShadowConfig(serverConfig.password, serverConfig.method);
-        this.shadowHost = serverConfig.server;
-        this.shadowPort = serverConfig.server_port;
+        return serverEndpoints;
     }
 
     @Override
     public Socket createSocket(String host, int port) throws IOException, UnknownHostException {
         try {
-            return new ShadowSocket(shadowConfig, shadowHost, shadowPort);
+            return newSocket();
         } catch (NoSuchAlgorithmException | InvalidKeySpecException | NoSuchProviderException e) {
             e.printStackTrace();
             throw new IOException();
@@ -97,7 +104,7 @@ public class ShadowSocketFactory extends SocketFactory
     @Override
     public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException, UnknownHostException {
         try {
-            return new ShadowSocket(shadowConfig, shadowHost, shadowPort);
+            return newSocket();
         } catch (NoSuchAlgorithmException | InvalidKeySpecException | NoSuchProviderException e) {
             e.printStackTrace();
             throw new IOException();
@@ -107,7 +114,7 @@ public class ShadowSocketFactory extends SocketFactory
     @Override
     public Socket createSocket(InetAddress host, int port) throws IOException {
         try {
-            return new ShadowSocket(shadowConfig, shadowHost, shadowPort);
+            return newSocket();
         } catch (NoSuchAlgorithmException | InvalidKeySpecException | NoSuchProviderException e) {
             e.printStackTrace();
             throw new IOException();
@@ -117,7 +124,7 @@ public class ShadowSocketFactory extends SocketFactory
     @Override
     public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
         try {
-            return new ShadowSocket(shadowConfig, shadowHost, shadowPort);
+            return newSocket();
         } catch (NoSuchAlgorithmException | InvalidKeySpecException | NoSuchProviderException e) {
             e.printStackTrace();
             throw new IOException();
@@ -128,7 +135,7 @@ public class ShadowSocketFactory extends SocketFactory
     public Socket createSocket() throws IOException {
         try
         {
-            return new ShadowSocket(shadowConfig, shadowHost, shadowPort);
+            return newSocket();
         }
         catch (NoSuchAlgorithmException | InvalidKeySpecException | NoSuchProviderException e)
         {
@@ -136,4 +143,44 @@ public class ShadowSocketFactory extends SocketFactory
             throw new IOException();
         }
     }
+
+    // Keeps size sockets connected and handshaked in the background, closing any left idle for maxIdleMillis.
+    // createSocket hands these out first and dials inline only when none is ready.
+    public synchronized void enableWarmPool(int size, long maxIdleMillis)
+    {
+        disableWarmPool();
+        warmPool = new WarmSocketPool(endpoints, size, maxIdleMillis);
+    }
+
+    public synchronized void disableWarmPool()
+    {
+        if (warmPool != null)
+        {
+            warmPool.stop();
+            warmPool = null;
+        }
+    }
+
+    // Returns the warm pool, for its metrics, or null if it is not enabled.
+    public WarmSocketPool getWarmPool()
+    {
+        return warmPool;
+    }
+
+    ShadowSocket newSocket() throws IOException, NoSuchAlgorithmException, InvalidKeySpecException, NoSuchProviderException
+    {
+        WarmSocketPool pool = warmPool;
+        if (pool != null)
+        {
+            return pool.take();
+        }
+
+        return endpoints.dial();
+    }
+
+    // Returns the servers this factory dials, for probing and health information.
+    public EndpointSelector getEndpoints()
+    {
+        return endpoints;
+    }
 }
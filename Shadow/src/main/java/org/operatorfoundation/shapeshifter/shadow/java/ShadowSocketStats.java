@@ -0,0 +1,199 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// ShadowSocketStats counts what one ShadowSocket has done: traffic in each direction, where its last handshake
+// spent its time, and how long it has spent encrypting and decrypting. Comparing the crypto time with the
+// handshake's network phases shows whether a slow connection is waiting on the network or on the CPU.
+// Counters are updated without locks from whichever thread does the work, so reads are only a loose snapshot.
+public class ShadowSocketStats
+{
+    // Frame payload sizes are counted in power of two buckets: bucket 0 is empty payloads, and bucket b holds
+    // payloads of at least 2^(b-1) bytes and less than 2^b bytes. The last bucket also takes anything larger.
+    public static final int frameSizeBucketCount = 16;
+
+    final AtomicLong bytesSent = new AtomicLong();
+    final AtomicLong bytesReceived = new AtomicLong();
+    final AtomicLong framesSent = new AtomicLong();
+    final AtomicLong framesReceived = new AtomicLong();
+    final AtomicLongArray sentFrameSizes = new AtomicLongArray(frameSizeBucketCount);
+    final AtomicLongArray receivedFrameSizes = new AtomicLongArray(frameSizeBucketCount);
+
+    final AtomicLong encryptNanos = new AtomicLong();
+    final AtomicLong decryptNanos = new AtomicLong();
+
+    // Phases of the most recent handshake, or -1 before the first one.
+    final AtomicLong connectNanos = new AtomicLong(-1);
+    final AtomicLong handshakeSendNanos = new AtomicLong(-1);
+    final AtomicLong handshakeReceiveNanos = new AtomicLong(-1);
+    final AtomicLong keyDerivationNanos = new AtomicLong(-1);
+
+    final AtomicLong redials = new AtomicLong();
+
+    // Plaintext bytes written by the application.
+    public long getBytesSent()
+    {
+        return bytesSent.get();
+    }
+
+    // Plaintext bytes decrypted for the application.
+    public long getBytesReceived()
+    {
+        return bytesReceived.get();
+    }
+
+    public long getFramesSent()
+    {
+        return framesSent.get();
+    }
+
+    public long getFramesReceived()
+    {
+        return framesReceived.get();
+    }
+
+    // Bytes that went over the wire for the frames sent, including lengths and tags.
+    public long getWireBytesSent()
+    {
+        return bytesSent.get() + framesSent.get() * (ShadowCipher.lengthWithTagSize + ShadowCipher.tagSize);
+    }
+
+    public long getWireBytesReceived()
+    {
+        return bytesReceived.get() + framesReceived.get() * (ShadowCipher.lengthWithTagSize + ShadowCipher.tagSize);
+    }
+
+    // The number of frames sent in each size bucket. See frameSizeBucketCount.
+    public long[] getSentFrameSizes()
+    {
+        return snapshot(sentFrameSizes);
+    }
+
+    public long[] getReceivedFrameSizes()
+    {
+        return snapshot(receivedFrameSizes);
+    }
+
+    // Time spent sealing frames, summed across every thread that sealed for this socket.
+    public long getEncryptNanos()
+    {
+        return encryptNanos.get();
+    }
+
+    // Time spent opening frames, lengths included, summed across every thread that opened them.
+    public long getDecryptNanos()
+    {
+        return decryptNanos.get();
+    }
+
+    // How long the TCP connection took to open.
+    public long getConnectNanos()
+    {
+        return connectNanos.get();
+    }
+
+    // How long writing our handshake to the socket took.
+    public long getHandshakeSendNanos()
+    {
+        return handshakeSendNanos.get();
+    }
+
+    // How long we waited for the server's handshake to arrive. This is mostly one round trip.
+    public long getHandshakeReceiveNanos()
+    {
+        return handshakeReceiveNanos.get();
+    }
+
+    // Time spent on the handshake's key agreement: building ours, then checking the server's and deriving both keys.
+    public long getKeyDerivationNanos()
+    {
+        return keyDerivationNanos.get();
+    }
+
+    // How many times the connection was dialed again after its first frame failed to decrypt.
+    public long getRedials()
+    {
+        return redials.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "sent " + bytesSent.get() + " bytes in " + framesSent.get() + " frames, received " + bytesReceived.get() + " bytes in " + framesReceived.get() + " frames"
+                + ", encrypt " + encryptNanos.get() / 1000 + " us, decrypt " + decryptNanos.get() / 1000 + " us"
+                + ", connect " + connectNanos.get() / 1000 + " us, handshake send " + handshakeSendNanos.get() / 1000 + " us, receive " + handshakeReceiveNanos.get() / 1000 + " us, keys " + keyDerivationNanos.get() / 1000 + " us"
+                + ", redials " + redials.get();
+    }
+
+    void recordFrameSent(int payloadLength)
+    {
+        framesSent.incrementAndGet();
+        bytesSent.addAndGet(payloadLength);
+        sentFrameSizes.incrementAndGet(frameSizeBucket(payloadLength));
+    }
+
+    void recordFrameReceived(int payloadLength)
+    {
+        framesReceived.incrementAndGet();
+        bytesReceived.addAndGet(payloadLength);
+        receivedFrameSizes.incrementAndGet(frameSizeBucket(payloadLength));
+    }
+
+    void recordEncrypt(long nanos)
+    {
+        encryptNanos.addAndGet(nanos);
+    }
+
+    void recordDecrypt(long nanos)
+    {
+        decryptNanos.addAndGet(nanos);
+    }
+
+    void recordRedial()
+    {
+        redials.incrementAndGet();
+    }
+
+    void recordConnect(long nanos)
+    {
+        connectNanos.set(nanos);
+    }
+
+    void recordHandshakeSend(long nanos)
+    {
+        handshakeSendNanos.set(nanos);
+    }
+
+    void recordHandshakeReceive(long nanos)
+    {
+        handshakeReceiveNanos.set(nanos);
+    }
+
+    void recordKeyDerivation(long nanos)
+    {
+        keyDerivationNanos.set(nanos);
+    }
+
+    // Adds a later phase of key derivation to the time recorded for this handshake.
+    void addKeyDerivation(long nanos)
+    {
+        keyDerivationNanos.addAndGet(nanos);
+    }
+
+    static int frameSizeBucket(int payloadLength)
+    {
+        return Math.min(frameSizeBucketCount - 1, 32 - Integer.numberOfLeadingZeros(payloadLength));
+    }
+
+    static long[] snapshot(AtomicLongArray counts)
+    {
+        long[] result = new long[counts.length()];
+        for (int index = 0; index < result.length; index++)
+        {
+            result[index] = counts.get(index);
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,62 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// StripedCounter is a counter that many threads can add to at once without fighting over one cache line.
+// Each thread adds to one of several cells picked by its id, and reading the count sums the cells.
+// LongAdder does the same job but needs a newer Android than this library supports.
+class StripedCounter
+{
+    // Cells are spread this many longs apart, so two cells never share a 64 byte cache line.
+    static final int padding = 8;
+
+    final AtomicLongArray cells;
+    final int mask;
+
+    StripedCounter()
+    {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() * 2 && stripes < 64)
+        {
+            stripes *= 2;
+        }
+
+        this.cells = new AtomicLongArray(stripes * padding);
+        this.mask = stripes - 1;
+    }
+
+    void increment()
+    {
+        add(1);
+    }
+
+    void add(long amount)
+    {
+        cells.addAndGet(cell(), amount);
+    }
+
+    void decrement()
+    {
+        add(-1);
+    }
+
+    long sum()
+    {
+        long sum = 0;
+        for (int index = 0; index < cells.length(); index += padding)
+        {
+            sum += cells.get(index);
+        }
+
+        return sum;
+    }
+
+    int cell()
+    {
+        long id = Thread.currentThread().getId();
+
+        // mix the id so threads created one after another land on different cells
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return ((hash >>> 16) & mask) * padding;
+    }
+}
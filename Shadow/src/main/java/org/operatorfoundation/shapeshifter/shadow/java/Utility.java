@@ -12,32 +12,37 @@ public class Utility {
     // Reads up to a specific number of bytes in a byte array.
     static byte[] readNBytes(InputStream input, int numBytes) throws IOException {
         byte[] buffer = new byte[numBytes];
-        int offset = input.read(buffer);
-        if (offset == -1) {
-            Log.e("readNBytes", "Could not find the offset for readNBytes.");
+        if (!readNBytes(input, buffer, 0, numBytes)) {
             return null;
         }
-        while (offset != numBytes) {
-            int bytesRead = input.read(buffer, offset, numBytes - offset);
+        return buffer;
+    }
+
+    // Reads exactly numBytes bytes into buffer starting at offset. Returns false if the stream ends first.
+    static boolean readNBytes(InputStream input, byte[] buffer, int offset, int numBytes) throws IOException {
+        int bytesReadTotal = 0;
+        while (bytesReadTotal != numBytes) {
+            int bytesRead = input.read(buffer, offset + bytesReadTotal, numBytes - bytesReadTotal);
             if (bytesRead == -1) {
                 Log.e("readNBytes", "Could not read the specified number of bytes.");
-                return null;
+                return false;
             }
-            offset = offset + bytesRead;
+            bytesReadTotal = bytesReadTotal + bytesRead;
         }
-        return buffer;
+        return true;
     }
 
-    // Reads up to a specific number of bytes in a byte buffer.
+    // Reads exactly numBytes bytes from a blocking channel into a byte buffer ready for reading.
+    // Returns null if the channel ends first.
     static ByteBuffer readNBytes(SocketChannel input, int numBytes) throws IOException {
         ByteBuffer buffer = ByteBuffer.allocate(numBytes);
-        ByteBuffer[] bufferArray = new ByteBuffer[]{buffer};
-        int offset = input.read(buffer);
-        while (offset != numBytes) {
-            long bytesRead = input.read(bufferArray, offset, numBytes - offset);
-            int bytesReadInt = (int) bytesRead;
-            offset += bytesReadInt;
+        while (buffer.hasRemaining()) {
+            if (input.read(buffer) == -1) {
+                Log.e("readNBytes", "Could not read the specified number of bytes.");
+                return null;
+            }
         }
+        buffer.flip();
         return buffer;
     }
 
@@ -0,0 +1,288 @@
+package org.operatorfoundation.shapeshifter.shadow.java;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+// WarmSocketPool keeps a few ShadowSockets connected and handshaked in the background, so a caller can have one
+// without waiting for the TCP connect and the DarkStar handshake. Sockets that sit unused longer than maxIdleMillis
+// are closed, since servers and middleboxes drop idle connections. When the pool is empty the caller dials inline.
+public class WarmSocketPool
+{
+    // How long the refill thread waits after a failed dial before trying again.
+    static final long retryDelayMillis = 1000;
+
+    final EndpointSelector endpoints;
+    final int size;
+    final long maxIdleMillis;
+
+    final LinkedBlockingDeque<Warm> sockets = new LinkedBlockingDeque<>();
+    final Thread refillThread;
+    volatile boolean running = true;
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong evictions = new AtomicLong();
+    final AtomicLong totalWaitNanos = new AtomicLong();
+
+    static class Warm
+    {
+        final ShadowSocket socket;
+        final long connectedAt;
+
+        Warm(ShadowSocket socket, long connectedAt)
+        {
+            this.socket = socket;
+            this.connectedAt = connectedAt;
+        }
+    }
+
+    public WarmSocketPool(ShadowConfig config, String host, int port, int size, long maxIdleMillis)
+    {
+        this(new EndpointSelector(Collections.singletonList(new ShadowEndpoint(config, host, port))), size, maxIdleMillis);
+    }
+
+    // Dials through endpoints, so warm sockets go to the best server and fail over like any other.
+    public WarmSocketPool(EndpointSelector endpoints, int size, long maxIdleMillis)
+    {
+        if (size < 1)
+        {
+            throw new IllegalArgumentException("size must be at least 1");
+        }
+
+        if (maxIdleMillis <= 0)
+        {
+            throw new IllegalArgumentException("maxIdleMillis must be positive");
+        }
+
+        this.endpoints = endpoints;
+        this.size = size;
+        this.maxIdleMillis = maxIdleMillis;
+        this.refillThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                refill();
+            }
+        }, "WarmSocketPool");
+        this.refillThread.setDaemon(true);
+        this.refillThread.start();
+    }
+
+    // Returns a connected, handshaked socket. Uses a warm one if a fresh one is ready and dials inline otherwise.
+    public ShadowSocket take() throws IOException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            Warm warm;
+            while ((warm = sockets.pollFirst()) != null)
+            {
+                if (isFresh(warm, System.currentTimeMillis()))
+                {
+                    hits.incrementAndGet();
+                    return warm.socket;
+                }
+
+                evict(warm);
+            }
+
+            misses.incrementAndGet();
+            return dial();
+        }
+        finally
+        {
+            totalWaitNanos.addAndGet(System.nanoTime() - start);
+            wakeRefill();
+        }
+    }
+
+    // The number of warm sockets ready right now.
+    public int size()
+    {
+        return sockets.size();
+    }
+
+    public long hitCount()
+    {
+        return hits.get();
+    }
+
+    public long missCount()
+    {
+        return misses.get();
+    }
+
+    public long evictionCount()
+    {
+        return evictions.get();
+    }
+
+    // The fraction of take() calls served from the pool, or 0 before the first call.
+    public double hitRate()
+    {
+        long hitCount = hits.get();
+        long takes = hitCount + misses.get();
+
+        return takes == 0 ? 0 : (double) hitCount / takes;
+    }
+
+    // The average time take() kept its callers waiting, in milliseconds.
+    public double averageWaitMillis()
+    {
+        long takes = hits.get() + misses.get();
+
+        return takes == 0 ? 0 : totalWaitNanos.get() / 1e6 / takes;
+    }
+
+    // Stops refilling and closes every warm socket.
+    public void stop()
+    {
+        running = false;
+        refillThread.interrupt();
+
+        Warm warm;
+        while ((warm = sockets.pollFirst()) != null)
+        {
+            close(warm.socket);
+        }
+    }
+
+    ShadowSocket dial() throws IOException
+    {
+        return endpoints.dial();
+    }
+
+    boolean isFresh(Warm warm, long now)
+    {
+        return !warm.socket.isClosed() && now - warm.connectedAt < maxIdleMillis;
+    }
+
+    void evict(Warm warm)
+    {
+        evictions.incrementAndGet();
+        close(warm.socket);
+    }
+
+    void wakeRefill()
+    {
+        synchronized (this)
+        {
+            notifyAll();
+        }
+    }
+
+    void refill()
+    {
+        while (running)
+        {
+            try
+            {
+                evictStale();
+
+                if (sockets.size() >= size)
+                {
+                    // sleep until a socket is taken or the oldest one goes stale
+                    synchronized (this)
+                    {
+                        Warm oldest = sockets.peekFirst();
+                        long wait = oldest == null ? maxIdleMillis : oldest.connectedAt + maxIdleMillis - System.currentTimeMillis();
+                        if (running && sockets.size() >= size && wait > 0)
+                        {
+                            wait(wait);
+                        }
+                    }
+                    continue;
+                }
+
+                ShadowSocket socket;
+                try
+                {
+                    socket = dial();
+                }
+                catch (Exception dialError)
+                {
+                    // anything short of a stop, including an unchecked error from the handshake, is retried
+                    Log.e("WarmSocketPool", "Refill failed, retrying.");
+                    dialError.printStackTrace();
+                    Thread.sleep(retryDelayMillis);
+                    continue;
+                }
+
+                if (!running)
+                {
+                    close(socket);
+                    break;
+                }
+
+                Warm warm = new Warm(socket, System.currentTimeMillis());
+                sockets.offerLast(warm);
+
+                // stop may have drained the queue between the check above and the offer
+                if (!running && sockets.remove(warm))
+                {
+                    close(socket);
+                    break;
+                }
+            }
+            catch (InterruptedException stopped)
+            {
+                break;
+            }
+            catch (RuntimeException refillError)
+            {
+                // keep the thread alive, or the pool would stay empty for good
+                Log.e("WarmSocketPool", "Refill failed, retrying.");
+                refillError.printStackTrace();
+                if (!pause(retryDelayMillis))
+                {
+                    break;
+                }
+            }
+        }
+    }
+
+    // Sleeps for millis milliseconds. Returns false if the pool was stopped meanwhile.
+    static boolean pause(long millis)
+    {
+        try
+        {
+            Thread.sleep(millis);
+            return true;
+        }
+        catch (InterruptedException stopped)
+        {
+            return false;
+        }
+    }
+
+    // Closes the sockets at the front of the queue that have been idle too long. The oldest sockets are always at the front.
+    void evictStale()
+    {
+        long now = System.currentTimeMillis();
+        Warm oldest;
+        while ((oldest = sockets.peekFirst()) != null && !isFresh(oldest, now))
+        {
+            if (sockets.remove(oldest))
+            {
+                evict(oldest);
+            }
+        }
+    }
+
+    static void close(ShadowSocket socket)
+    {
+        try
+        {
+            socket.close();
+        }
+        catch (IOException closeError)
+        {
+            // already closed
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package org.operatorfoundation.shadow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import org.junit.Test;
+import org.operatorfoundation.shapeshifter.shadow.java.Bloom;
+import org.operatorfoundation.shapeshifter.shadow.java.ConcurrentBloomFilter;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BloomConcurrencyBenchmark
+{
+    static final int threads = 8;
+    static final int saltsPerThread = 50_000;
+
+    static byte[] salt(int index)
+    {
+        return ByteBuffer.allocate(64).putInt(index).putInt(60, ~index).array();
+    }
+
+    interface ReplayFilter
+    {
+        boolean checkBloom(byte[] salt);
+    }
+
+    @Test
+    public void putIfAbsentTest()
+    {
+        ConcurrentBloomFilter filter = new ConcurrentBloomFilter(1000, 0.000001);
+
+        assertFalse(filter.mightContain(salt(1)));
+        assertTrue(filter.putIfAbsent(salt(1)));
+        assertTrue(filter.mightContain(salt(1)));
+        assertFalse(filter.putIfAbsent(salt(1)));
+    }
+
+    @Test
+    public void eachSaltIsNewExactlyOnceTest() throws Exception
+    {
+        final Bloom bloom = new Bloom(threads * saltsPerThread, 0.000001, Long.MAX_VALUE);
+
+        // every thread offers the same salts, so each one must be reported as new by exactly one thread
+        final AtomicInteger newSalts = new AtomicInteger();
+        run(new ReplayFilter()
+        {
+            @Override
+            public boolean checkBloom(byte[] salt)
+            {
+                boolean seen = bloom.checkBloom(salt);
+                if (!seen)
+                {
+                    newSalts.incrementAndGet();
+                }
+
+                return seen;
+            }
+        }, true);
+
+        // a false positive could hide a salt, but at this rate that should not happen once in the whole run
+        assertEquals(saltsPerThread, newSalts.get());
+    }
+
+    @Test
+    public void contendedThroughputBenchmark() throws Exception
+    {
+        final LegacyBloom legacy = new LegacyBloom();
+        final Bloom bloom = new Bloom(threads * saltsPerThread, 0.000001, Long.MAX_VALUE);
+
+        ReplayFilter legacyFilter = new ReplayFilter()
+        {
+            @Override
+            public boolean checkBloom(byte[] salt)
+            {
+                return legacy.checkBloom(salt);
+            }
+        };
+        ReplayFilter bloomFilter = new ReplayFilter()
+        {
+            @Override
+            public boolean checkBloom(byte[] salt)
+            {
+                return bloom.checkBloom(salt);
+            }
+        };
+
+        // warm both paths up so the measurement reflects compiled code
+        run(legacyFilter, false);
+        run(bloomFilter, false);
+
+        legacy.reset();
+        final Bloom measured = new Bloom(threads * saltsPerThread, 0.000001, Long.MAX_VALUE);
+        long legacyNanos = run(legacyFilter, false);
+        long bloomNanos = run(new ReplayFilter()
+        {
+            @Override
+            public boolean checkBloom(byte[] salt)
+            {
+                return measured.checkBloom(salt);
+            }
+        }, false);
+
+        int checks = threads * saltsPerThread;
+        System.out.println("synchronized Guava BloomFilter: " + (double) legacyNanos / checks + " ns/check with " + threads + " threads");
+        System.out.println("Bloom: " + (double) bloomNanos / checks + " ns/check with " + threads + " threads");
+    }
+
+    // Runs threads threads against filter at once and returns the wall time. With sharedSalts every thread offers
+    // the same salts, otherwise each thread has its own.
+    static long run(final ReplayFilter filter, final boolean sharedSalts) throws Exception
+    {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger failures = new AtomicInteger();
+
+        for (int thread = 0; thread < threads; thread++)
+        {
+            final int first = sharedSalts ? 0 : thread * saltsPerThread;
+            new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int index = first; index < first + saltsPerThread; index++)
+                        {
+                            filter.checkBloom(salt(index));
+                        }
+                    }
+                    catch (Throwable error)
+                    {
+                        failures.incrementAndGet();
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        long began = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - began;
+
+        assertEquals(0, failures.get());
+        return elapsed;
+    }
+
+    // The replay check Bloom used before ConcurrentBloomFilter, kept for comparison.
+    static class LegacyBloom
+    {
+        BloomFilter<byte[]> saltHistory;
+
+        LegacyBloom()
+        {
+            reset();
+        }
+
+        void reset()
+        {
+            saltHistory = BloomFilter.create(Funnels.byteArrayFunnel(), threads * saltsPerThread, 0.000001);
+        }
+
+        synchronized boolean checkBloom(byte[] salt)
+        {
+            if (saltHistory.mightContain(salt))
+            {
+                return true;
+            }
+
+            saltHistory.put(salt);
+            return false;
+        }
+    }
+}
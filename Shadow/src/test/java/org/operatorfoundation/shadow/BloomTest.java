@@ -0,0 +1,135 @@
+package org.operatorfoundation.shadow;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.operatorfoundation.shapeshifter.shadow.java.Bloom;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class BloomTest
+{
+    static byte[] salt(int index)
+    {
+        return ByteBuffer.allocate(64).putInt(index).putInt(60, ~index).array();
+    }
+
+    @Test
+    public void replaysAreCaughtAcrossOneRotationTest()
+    {
+        Bloom bloom = new Bloom(100, 0.000001, Long.MAX_VALUE);
+        for (int index = 0; index < 150; index++)
+        {
+            assertFalse(bloom.checkBloom(salt(index)));
+        }
+
+        // the first 100 salts are in the previous generation now
+        assertTrue(bloom.checkBloom(salt(0)));
+        assertTrue(bloom.checkBloom(salt(149)));
+
+        // two rotations later the oldest salts have aged out
+        for (int index = 150; index < 350; index++)
+        {
+            bloom.checkBloom(salt(index));
+        }
+        assertFalse(bloom.checkBloom(salt(0)));
+    }
+
+    @Test
+    public void falsePositiveRateStaysFlatTest()
+    {
+        Bloom bloom = new Bloom(1000, 0.001, Long.MAX_VALUE);
+        int falsePositives = 0;
+        for (int index = 0; index < 100000; index++)
+        {
+            if (bloom.checkBloom(salt(index)))
+            {
+                falsePositives++;
+            }
+        }
+
+        // a single filter sized for 1000 salts would reject most of these
+        assertTrue("false positives: " + falsePositives, falsePositives < 300);
+    }
+
+    @Test
+    public void saveAndLoadTest() throws Exception
+    {
+        File file = File.createTempFile("bloom", ".bin");
+        try
+        {
+            Bloom bloom = new Bloom(100, 0.000001, Long.MAX_VALUE);
+            for (int index = 0; index < 150; index++)
+            {
+                bloom.checkBloom(salt(index));
+            }
+            bloom.save(file.getPath());
+
+            Bloom loaded = new Bloom(100, 0.000001, Long.MAX_VALUE);
+            loaded.load(file.getPath());
+            assertTrue(loaded.checkBloom(salt(10)));
+            assertTrue(loaded.checkBloom(salt(120)));
+            assertFalse(loaded.checkBloom(salt(1000)));
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void mappedFilterSurvivesReopenTest() throws Exception
+    {
+        File file = File.createTempFile("bloom", ".map");
+        file.delete();
+        try
+        {
+            Bloom bloom = new Bloom(100, 0.000001, Long.MAX_VALUE);
+            bloom.map(file.getPath());
+            for (int index = 0; index < 150; index++)
+            {
+                assertFalse(bloom.checkBloom(salt(index)));
+            }
+
+            // nothing is saved: a fresh Bloom mapping the same file sees both generations
+            Bloom reopened = new Bloom(100, 0.000001, Long.MAX_VALUE);
+            reopened.map(file.getPath());
+            assertTrue(reopened.checkBloom(salt(10)));
+            assertTrue(reopened.checkBloom(salt(149)));
+            assertFalse(reopened.checkBloom(salt(1000)));
+
+            // the count of the current generation was kept too, so the next rotation comes on time
+            for (int index = 1001; index < 1100; index++)
+            {
+                reopened.checkBloom(salt(index));
+            }
+            assertFalse(reopened.checkBloom(salt(10)));
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptMappedFileTest() throws Exception
+    {
+        File file = File.createTempFile("bloom", ".map");
+        try
+        {
+            FileOutputStream output = new FileOutputStream(file);
+            output.write(new byte[100]);
+            output.close();
+
+            new Bloom().map(file.getPath());
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+}
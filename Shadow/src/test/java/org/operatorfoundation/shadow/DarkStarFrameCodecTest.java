@@ -0,0 +1,112 @@
+package org.operatorfoundation.shadow;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.operatorfoundation.shadow.ShadowCipherTest.testKey;
+import static org.operatorfoundation.shadow.ShadowStreamTest.testBytes;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.operatorfoundation.shapeshifter.shadow.java.DarkStarFrameDecoder;
+import org.operatorfoundation.shapeshifter.shadow.java.DarkStarFrameEncoder;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowDarkStarCipher;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import javax.crypto.ShortBufferException;
+
+public class DarkStarFrameCodecTest
+{
+    @BeforeClass
+    public static void installProvider()
+    {
+        TestProviders.install();
+    }
+
+    @Test
+    public void decodeArbitraryChunksTest() throws Exception
+    {
+        byte[] plaintext = testBytes(100000);
+        DarkStarFrameEncoder encoder = new DarkStarFrameEncoder(new ShadowDarkStarCipher(testKey()));
+        ByteBuffer encoded = encoder.encode(ByteBuffer.wrap(plaintext));
+        assertEquals(DarkStarFrameEncoder.encodedSize(plaintext.length), encoded.remaining());
+
+        for (int chunkSize : new int[]{1, 7, 18, 1000, 70000})
+        {
+            DarkStarFrameDecoder decoder = new DarkStarFrameDecoder(new ShadowDarkStarCipher(testKey()), 64);
+            final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            DarkStarFrameDecoder.FrameListener listener = new DarkStarFrameDecoder.FrameListener()
+            {
+                @Override
+                public void onFrame(ByteBuffer frame)
+                {
+                    decoded.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                }
+            };
+
+            ByteBuffer stream = encoded.duplicate();
+            int frames = 0;
+            while (stream.hasRemaining())
+            {
+                ByteBuffer chunk = stream.slice();
+                chunk.limit(Math.min(chunkSize, chunk.remaining()));
+                stream.position(stream.position() + chunk.remaining());
+                frames += decoder.decode(chunk, listener);
+            }
+
+            assertEquals(7, frames);
+            assertEquals(0, decoder.buffered());
+            assertArrayEquals(plaintext, decoded.toByteArray());
+        }
+    }
+
+    @Test
+    public void encodeOnlyWholeFramesTest() throws Exception
+    {
+        DarkStarFrameEncoder encoder = new DarkStarFrameEncoder(new ShadowDarkStarCipher(testKey()));
+        ByteBuffer plaintext = ByteBuffer.wrap(testBytes(1000));
+        ByteBuffer output = ByteBuffer.allocate(DarkStarFrameEncoder.encodedSize(1000) - 1);
+
+        assertEquals(0, encoder.encode(plaintext, output));
+        assertEquals(0, output.position());
+        assertEquals(1000, plaintext.remaining());
+    }
+
+    @Test
+    public void decodeIntoShortBufferKeepsFrameTest() throws Exception
+    {
+        byte[] plaintext = testBytes(3000);
+        DarkStarFrameEncoder encoder = new DarkStarFrameEncoder(new ShadowDarkStarCipher(testKey()));
+        ByteBuffer encoded = encoder.encode(ByteBuffer.wrap(plaintext, 0, 1000));
+        encoded = concat(encoded, encoder.encode(ByteBuffer.wrap(plaintext, 1000, 2000)));
+
+        DarkStarFrameDecoder decoder = new DarkStarFrameDecoder(new ShadowDarkStarCipher(testKey()));
+        decoder.feed(encoded);
+        assertEquals(1000, decoder.nextFrameLength());
+
+        try
+        {
+            decoder.decodeFrame(ByteBuffer.allocate(999));
+            fail("decoded into a buffer that was too small");
+        }
+        catch (ShortBufferException expected)
+        {
+            assertEquals(1000, decoder.nextFrameLength());
+        }
+
+        // the frame and the nonce were kept, so both frames still decode
+        ByteBuffer output = ByteBuffer.allocate(3000);
+        assertEquals(1000, decoder.decodeFrame(output));
+        assertEquals(2000, decoder.decodeFrame(output));
+        assertArrayEquals(plaintext, output.array());
+    }
+
+    static ByteBuffer concat(ByteBuffer first, ByteBuffer second)
+    {
+        ByteBuffer both = ByteBuffer.allocate(first.remaining() + second.remaining());
+        both.put(first).put(second).flip();
+        return both;
+    }
+}
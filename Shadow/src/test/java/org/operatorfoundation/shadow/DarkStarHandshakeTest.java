@@ -0,0 +1,62 @@
+package org.operatorfoundation.shadow;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.operatorfoundation.shapeshifter.shadow.java.DarkStar;
+import org.operatorfoundation.shapeshifter.shadow.java.DarkStarHandshake;
+
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.util.Arrays;
+
+public class DarkStarHandshakeTest
+{
+    @BeforeClass
+    public static void installProvider()
+    {
+        TestProviders.install();
+    }
+
+    @Test
+    public void matchesStaticKeyScheduleTest() throws Exception
+    {
+        KeyPair serverPersistent = DarkStarTestServer.oddKeyPair();
+        KeyPair serverEphemeral = DarkStarTestServer.oddKeyPair();
+        KeyPair clientEphemeral = DarkStar.generateECKeys();
+
+        DarkStarHandshake handshake = new DarkStarHandshake("127.0.0.1", 1234, serverPersistent.getPublic(), clientEphemeral);
+
+        byte[] clientHandshake = handshake.clientHandshake();
+        byte[] clientConfirmationCode = DarkStar.generateClientConfirmationCode("127.0.0.1", 1234, serverPersistent.getPublic(), clientEphemeral.getPublic(), clientEphemeral.getPrivate());
+        assertEquals(64, clientHandshake.length);
+        assertArrayEquals(DarkStar.publicKeyToBytes(clientEphemeral.getPublic()), Arrays.copyOfRange(clientHandshake, 0, 32));
+        assertArrayEquals(clientConfirmationCode, Arrays.copyOfRange(clientHandshake, 32, 64));
+
+        byte[] serverHandshake = new byte[64];
+        System.arraycopy(DarkStar.publicKeyToBytes(serverEphemeral.getPublic()), 0, serverHandshake, 0, 32);
+        byte[] serverConfirmationCode = DarkStar.generateServerConfirmationCode("127.0.0.1", 1234, clientEphemeral.getPublic(), clientEphemeral.getPrivate(), serverPersistent.getPublic());
+        System.arraycopy(serverConfirmationCode, 0, serverHandshake, 32, 32);
+
+        handshake.receive(serverHandshake);
+
+        for (boolean isClientToServer : new boolean[]{true, false})
+        {
+            byte[] expected = DarkStar.generateSharedKey(isClientToServer, "127.0.0.1", 1234, clientEphemeral, serverEphemeral.getPublic(), serverPersistent.getPublic()).getEncoded();
+            assertArrayEquals(expected, handshake.sharedKey(isClientToServer).getEncoded());
+        }
+    }
+
+    @Test(expected = InvalidKeyException.class)
+    public void rejectsWrongConfirmationCodeTest() throws Exception
+    {
+        KeyPair serverPersistent = DarkStarTestServer.oddKeyPair();
+        DarkStarHandshake handshake = new DarkStarHandshake("127.0.0.1", 1234, serverPersistent.getPublic(), DarkStar.generateECKeys());
+
+        byte[] serverHandshake = new byte[64];
+        System.arraycopy(DarkStar.publicKeyToBytes(DarkStarTestServer.oddKeyPair().getPublic()), 0, serverHandshake, 0, 32);
+        handshake.receive(serverHandshake);
+    }
+}
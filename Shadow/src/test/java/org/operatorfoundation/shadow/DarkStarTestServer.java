@@ -0,0 +1,214 @@
+package org.operatorfoundation.shadow;
+
+import org.bouncycastle.jcajce.provider.asymmetric.ec.BCECPublicKey;
+import org.operatorfoundation.shapeshifter.shadow.java.DarkStar;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowConfig;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowDarkStarCipher;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowInputStream;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowOutputStream;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+// A minimal DarkStar server for tests. It answers each handshake and then hands the decrypted streams to a Handler,
+// which by default echoes every byte it receives.
+public class DarkStarTestServer implements AutoCloseable
+{
+    public interface Handler
+    {
+        void serve(InputStream input, OutputStream output) throws Exception;
+    }
+
+    static final Handler echo = new Handler()
+    {
+        @Override
+        public void serve(InputStream input, OutputStream output) throws Exception
+        {
+            byte[] buffer = new byte[65536];
+            int bytesRead;
+            while ((bytesRead = input.read(buffer)) != -1)
+            {
+                output.write(buffer, 0, bytesRead);
+            }
+        }
+    };
+
+    final Handler handler;
+    final KeyPair persistentKeyPair = oddKeyPair();
+    final ServerSocket serverSocket;
+    final AtomicInteger handshakes = new AtomicInteger();
+
+    public DarkStarTestServer() throws IOException
+    {
+        this(echo);
+    }
+
+    public DarkStarTestServer(Handler handler) throws IOException
+    {
+        this.handler = handler;
+        TestProviders.install();
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+        Thread acceptThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                acceptConnections();
+            }
+        });
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public ShadowConfig config()
+    {
+        return new ShadowConfig(DarkStar.bytesToHex(DarkStar.publicKeyToBytes(persistentKeyPair.getPublic())), "DarkStar");
+    }
+
+    public String host()
+    {
+        return "127.0.0.1";
+    }
+
+    public int port()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    public int handshakeCount()
+    {
+        return handshakes.get();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        serverSocket.close();
+    }
+
+    void acceptConnections()
+    {
+        while (!serverSocket.isClosed())
+        {
+            try
+            {
+                final Socket socket = serverSocket.accept();
+                Thread connectionThread = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        serve(socket);
+                    }
+                });
+                connectionThread.setDaemon(true);
+                connectionThread.start();
+            }
+            catch (IOException acceptError)
+            {
+                return;
+            }
+        }
+    }
+
+    void serve(Socket socket)
+    {
+        try
+        {
+            InputStream networkInput = socket.getInputStream();
+            byte[] clientHandshake = new byte[64];
+            new DataInputStream(networkInput).readFully(clientHandshake);
+
+            byte[] clientEphemeralPublicKeyData = new byte[32];
+            System.arraycopy(clientHandshake, 0, clientEphemeralPublicKeyData, 0, 32);
+            PublicKey clientEphemeralPublicKey = DarkStar.bytesToPublicKey(clientEphemeralPublicKeyData);
+
+            KeyPair serverEphemeralKeyPair = oddKeyPair();
+            byte[] serverIdentifier = DarkStar.makeServerIdentifier(host(), port());
+            byte[] persistentPublicKeyData = DarkStar.publicKeyToBytes(persistentKeyPair.getPublic());
+            byte[] ephemeralPublicKeyData = DarkStar.publicKeyToBytes(serverEphemeralKeyPair.getPublic());
+
+            SecretKey persistentSecret = DarkStar.generateSharedSecret(persistentKeyPair.getPrivate(), clientEphemeralPublicKey);
+            SecretKey ephemeralSecret = DarkStar.generateSharedSecret(serverEphemeralKeyPair.getPrivate(), clientEphemeralPublicKey);
+
+            MessageDigest confirmation = MessageDigest.getInstance("SHA-256");
+            confirmation.update(persistentSecret.getEncoded());
+            confirmation.update(serverIdentifier);
+            confirmation.update(persistentPublicKeyData);
+            confirmation.update(clientEphemeralPublicKeyData);
+            confirmation.update("DarkStar".getBytes());
+            confirmation.update("server".getBytes());
+
+            byte[] serverHandshake = new byte[64];
+            System.arraycopy(ephemeralPublicKeyData, 0, serverHandshake, 0, 32);
+            System.arraycopy(confirmation.digest(), 0, serverHandshake, 32, 32);
+            handshakes.incrementAndGet();
+            socket.getOutputStream().write(serverHandshake);
+
+            // the client encrypts with the key labelled "server" and decrypts with the one labelled "client"
+            SecretKey clientToServer = sharedKey(ephemeralSecret, persistentSecret, serverIdentifier, clientEphemeralPublicKeyData, ephemeralPublicKeyData, "server");
+            SecretKey serverToClient = sharedKey(ephemeralSecret, persistentSecret, serverIdentifier, clientEphemeralPublicKeyData, ephemeralPublicKeyData, "client");
+
+            ShadowInputStream input = new ShadowInputStream(null, networkInput, new ShadowDarkStarCipher(clientToServer));
+            ShadowOutputStream output = new ShadowOutputStream(socket.getOutputStream(), new ShadowDarkStarCipher(serverToClient));
+
+            handler.serve(input, output);
+        }
+        catch (Exception serveError)
+        {
+            // the client went away
+        }
+        finally
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (IOException closeError)
+            {
+                // already closed
+            }
+        }
+    }
+
+    static SecretKey sharedKey(SecretKey ephemeralSecret, SecretKey persistentSecret, byte[] serverIdentifier, byte[] clientEphemeralPublicKeyData, byte[] serverEphemeralPublicKeyData, String label) throws Exception
+    {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(ephemeralSecret.getEncoded());
+        digest.update(persistentSecret.getEncoded());
+        digest.update(serverIdentifier);
+        digest.update(clientEphemeralPublicKeyData);
+        digest.update(serverEphemeralPublicKeyData);
+        digest.update("DarkStar".getBytes());
+        digest.update(label.getBytes());
+        byte[] result = digest.digest();
+
+        return new SecretKeySpec(result, 0, result.length, "AES");
+    }
+
+    // DarkStar sends only the x coordinate and assumes the odd y, so server keys must have an odd y.
+    static KeyPair oddKeyPair()
+    {
+        while (true)
+        {
+            KeyPair keyPair = DarkStar.generateECKeys();
+            if (((BCECPublicKey) keyPair.getPublic()).getQ().getEncoded(true)[0] == 3)
+            {
+                return keyPair;
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.operatorfoundation.shadow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.operatorfoundation.shapeshifter.shadow.java.EndpointSelector;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowEndpoint;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowSocket;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+
+public class EndpointSelectorTest
+{
+    @Test
+    public void failsOverToAHealthyServerTest() throws Exception
+    {
+        try (DarkStarTestServer server = new DarkStarTestServer())
+        {
+            // a port nothing listens on
+            ServerSocket closed = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+            int deadPort = closed.getLocalPort();
+            closed.close();
+
+            ShadowEndpoint dead = new ShadowEndpoint(server.config(), server.host(), deadPort);
+            ShadowEndpoint live = new ShadowEndpoint(server.config(), server.host(), server.port());
+            EndpointSelector selector = new EndpointSelector(Arrays.asList(dead, live));
+            assertSame(dead, selector.select());
+
+            ShadowSocket socket = selector.dial();
+            socket.close();
+
+            assertFalse(dead.isHealthy(System.currentTimeMillis()));
+            assertTrue(live.handshakeMillis() >= 0);
+            assertSame(live, selector.select());
+        }
+    }
+
+    @Test
+    public void fastestServerIsPreferredTest() throws Exception
+    {
+        try (DarkStarTestServer first = new DarkStarTestServer(); DarkStarTestServer second = new DarkStarTestServer())
+        {
+            ShadowEndpoint firstEndpoint = new ShadowEndpoint(first.config(), first.host(), first.port());
+            ShadowEndpoint secondEndpoint = new ShadowEndpoint(second.config(), second.host(), second.port());
+            EndpointSelector selector = new EndpointSelector(Arrays.asList(firstEndpoint, secondEndpoint));
+
+            selector.probe();
+            assertEquals(1, first.handshakeCount());
+            assertEquals(1, second.handshakeCount());
+
+            ShadowEndpoint fastest = firstEndpoint.handshakeMillis() <= secondEndpoint.handshakeMillis() ? firstEndpoint : secondEndpoint;
+            assertSame(fastest, selector.select());
+        }
+    }
+}
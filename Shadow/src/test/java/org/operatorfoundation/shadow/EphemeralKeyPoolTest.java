@@ -0,0 +1,63 @@
+package org.operatorfoundation.shadow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.operatorfoundation.shapeshifter.shadow.java.EphemeralKeyPool;
+
+import java.security.KeyPair;
+import java.util.HashSet;
+import java.util.Set;
+
+public class EphemeralKeyPoolTest
+{
+    @BeforeClass
+    public static void installProvider()
+    {
+        TestProviders.install();
+    }
+
+    @Test
+    public void poolRefillsAndHandsOutEachKeyOnceTest() throws Exception
+    {
+        EphemeralKeyPool pool = new EphemeralKeyPool(4);
+        try
+        {
+            waitForSize(pool, 4);
+
+            Set<KeyPair> seen = new HashSet<>();
+            for (int index = 0; index < 4; index++)
+            {
+                assertTrue(seen.add(pool.take()));
+            }
+            assertEquals(4, pool.hitCount());
+
+            // empty pools fall back to inline generation
+            while (pool.size() > 0)
+            {
+                seen.add(pool.take());
+            }
+            KeyPair inline = pool.take();
+            assertTrue(seen.add(inline));
+
+            waitForSize(pool, 4);
+            assertTrue(seen.add(pool.take()));
+        }
+        finally
+        {
+            pool.stop();
+        }
+    }
+
+    static void waitForSize(EphemeralKeyPool pool, int size) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pool.size() < size && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(size, pool.size());
+    }
+}
@@ -0,0 +1,120 @@
+package org.operatorfoundation.shadow;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.jce.spec.ECParameterSpec;
+import org.bouncycastle.jce.spec.ECPublicKeySpec;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.operatorfoundation.shapeshifter.shadow.java.DarkStar;
+
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
+import javax.crypto.KeyAgreement;
+
+public class HandshakeBenchmark
+{
+    static final int handshakes = 200;
+
+    @BeforeClass
+    public static void installProvider()
+    {
+        TestProviders.install();
+    }
+
+    // The public-key work of one client handshake: an ephemeral key pair, decoding the two server keys,
+    // and the two ECDH results, hashed into the session key. The shared path goes through DarkStar.generateSharedKey,
+    // which uses the cached KeyAgreement and SHA-256 digest.
+    @Test
+    public void handshakePrimitivesBenchmark() throws Exception
+    {
+        KeyPair serverPersistent = DarkStarTestServer.oddKeyPair();
+        KeyPair serverEphemeral = DarkStarTestServer.oddKeyPair();
+        byte[] serverPersistentData = DarkStar.publicKeyToBytes(serverPersistent.getPublic());
+        byte[] serverEphemeralData = DarkStar.publicKeyToBytes(serverEphemeral.getPublic());
+
+        byte[] serverIdentifier = DarkStar.makeServerIdentifier("127.0.0.1", 1234);
+
+        // both paths derive the same key
+        KeyPair clientEphemeral = DarkStar.generateECKeys();
+        assertArrayEquals(
+                LegacyPrimitives.sharedKey(clientEphemeral, serverEphemeralData, serverPersistentData, serverIdentifier),
+                DarkStar.generateSharedKey(true, "127.0.0.1", 1234, clientEphemeral, DarkStar.bytesToPublicKey(serverEphemeralData), DarkStar.bytesToPublicKey(serverPersistentData)).getEncoded());
+
+        for (int round = 0; round < 2; round++)
+        {
+            long start = System.nanoTime();
+            for (int index = 0; index < handshakes; index++)
+            {
+                KeyPair keyPair = LegacyPrimitives.generateECKeys();
+                LegacyPrimitives.sharedKey(keyPair, serverEphemeralData, serverPersistentData, serverIdentifier);
+            }
+            long legacyNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int index = 0; index < handshakes; index++)
+            {
+                KeyPair keyPair = DarkStar.generateECKeys();
+                DarkStar.generateSharedKey(true, "127.0.0.1", 1234, keyPair, DarkStar.bytesToPublicKey(serverEphemeralData), DarkStar.bytesToPublicKey(serverPersistentData));
+            }
+            long sharedNanos = System.nanoTime() - start;
+
+            // the first round warms both paths up
+            if (round == 1)
+            {
+                System.out.println("New provider per call: " + legacyNanos / handshakes / 1000 + " us/handshake");
+                System.out.println("Shared provider, cached primitives: " + sharedNanos / handshakes / 1000 + " us/handshake");
+            }
+        }
+    }
+
+    // The primitive construction DarkStar used before DarkStarCrypto, kept for comparison.
+    static class LegacyPrimitives
+    {
+        static KeyPair generateECKeys() throws Exception
+        {
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC", new BouncyCastleProvider());
+            keyPairGenerator.initialize(ECNamedCurveTable.getParameterSpec("secp256r1"));
+            return keyPairGenerator.generateKeyPair();
+        }
+
+        static byte[] sharedSecret(PrivateKey privateKey, PublicKey publicKey) throws Exception
+        {
+            KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH", new BouncyCastleProvider());
+            keyAgreement.init(privateKey);
+            keyAgreement.doPhase(publicKey, true);
+            return keyAgreement.generateSecret("secp256r1").getEncoded();
+        }
+
+        // The client-to-server key, hashed the way DarkStar.sharedKey does it but with a new digest each time.
+        static byte[] sharedKey(KeyPair clientEphemeral, byte[] serverEphemeralData, byte[] serverPersistentData, byte[] serverIdentifier) throws Exception
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(sharedSecret(clientEphemeral.getPrivate(), bytesToPublicKey(serverEphemeralData)));
+            digest.update(sharedSecret(clientEphemeral.getPrivate(), bytesToPublicKey(serverPersistentData)));
+            digest.update(serverIdentifier);
+            digest.update(DarkStar.publicKeyToBytes(clientEphemeral.getPublic()));
+            digest.update(serverEphemeralData);
+            digest.update("DarkStar".getBytes());
+            digest.update("server".getBytes());
+            return digest.digest();
+        }
+
+        static PublicKey bytesToPublicKey(byte[] bytes) throws Exception
+        {
+            KeyFactory keyFactory = KeyFactory.getInstance("EC", new BouncyCastleProvider());
+            ECParameterSpec ecSpec = ECNamedCurveTable.getParameterSpec("secp256r1");
+            byte[] encodedPoint = new byte[33];
+            System.arraycopy(bytes, 0, encodedPoint, 1, 32);
+            encodedPoint[0] = 3;
+            return keyFactory.generatePublic(new ECPublicKeySpec(ecSpec.getCurve().decodePoint(encodedPoint), ecSpec));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.operatorfoundation.shadow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.operatorfoundation.shapeshifter.shadow.java.HappyEyeballs;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+public class HappyEyeballsTest
+{
+    @Test
+    public void firstAnsweringAddressWinsTest() throws Exception
+    {
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1")))
+        {
+            // 192.0.2.1 is reserved for documentation, so connecting to it hangs like a dead path
+            InetAddress[] addresses = new InetAddress[]{
+                    InetAddress.getByName("192.0.2.1"),
+                    InetAddress.getByName("127.0.0.1")
+            };
+
+            long start = System.currentTimeMillis();
+            try (Socket socket = HappyEyeballs.connect(addresses, server.getLocalPort()))
+            {
+                long elapsed = System.currentTimeMillis() - start;
+                assertEquals(InetAddress.getByName("127.0.0.1"), socket.getInetAddress());
+                assertTrue(socket.isConnected());
+                assertTrue("took " + elapsed + " ms", elapsed < 5000);
+
+                socket.getOutputStream().write(1);
+                try (Socket accepted = server.accept())
+                {
+                    assertEquals(1, accepted.getInputStream().read());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void failedAttemptStartsTheNextAtOnceTest() throws Exception
+    {
+        long delay = HappyEyeballs.attemptDelayMillis;
+        HappyEyeballs.attemptDelayMillis = 10000;
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1")))
+        {
+            // nothing listens on 127.0.0.2, so the first attempt is refused straight away
+            InetAddress[] addresses = new InetAddress[]{
+                    InetAddress.getByName("127.0.0.2"),
+                    InetAddress.getByName("127.0.0.1")
+            };
+
+            long start = System.currentTimeMillis();
+            try (Socket socket = HappyEyeballs.connect(addresses, server.getLocalPort()))
+            {
+                long elapsed = System.currentTimeMillis() - start;
+                assertEquals(InetAddress.getByName("127.0.0.1"), socket.getInetAddress());
+                assertTrue("took " + elapsed + " ms", elapsed < 5000);
+            }
+        }
+        finally
+        {
+            HappyEyeballs.attemptDelayMillis = delay;
+        }
+    }
+
+    @Test
+    public void readingDoesNotBlockWritingTest() throws Exception
+    {
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1")))
+        {
+            InetAddress[] addresses = new InetAddress[]{
+                    InetAddress.getByName("127.0.0.2"),
+                    InetAddress.getByName("127.0.0.1")
+            };
+
+            try (final Socket socket = HappyEyeballs.connect(addresses, server.getLocalPort());
+                 Socket accepted = server.accept())
+            {
+                accepted.setSoTimeout(5000);
+
+                // park a reader first, then write from this thread while it waits
+                FutureTask<Integer> reader = new FutureTask<>(new Callable<Integer>()
+                {
+                    @Override
+                    public Integer call() throws IOException
+                    {
+                        return socket.getInputStream().read();
+                    }
+                });
+                Thread readerThread = new Thread(reader);
+                readerThread.setDaemon(true);
+                readerThread.start();
+                Thread.sleep(100);
+
+                socket.getOutputStream().write(7);
+                assertEquals(7, accepted.getInputStream().read());
+
+                accepted.getOutputStream().write(8);
+                assertEquals(8, (int) reader.get(5, TimeUnit.SECONDS));
+            }
+        }
+    }
+}
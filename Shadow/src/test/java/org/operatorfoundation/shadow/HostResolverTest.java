@@ -0,0 +1,24 @@
+package org.operatorfoundation.shadow;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.operatorfoundation.shapeshifter.shadow.java.DarkStar;
+import org.operatorfoundation.shapeshifter.shadow.java.HostResolver;
+
+import java.net.InetAddress;
+
+public class HostResolverTest
+{
+    @Test
+    public void cachedAddressIsReusedTest() throws Exception
+    {
+        HostResolver.clear();
+        InetAddress first = HostResolver.resolve("localhost");
+        assertSame(first, HostResolver.resolve("localhost"));
+
+        assertArrayEquals(DarkStar.makeServerIdentifier(first, 1234), DarkStar.makeServerIdentifier("localhost", 1234));
+        HostResolver.clear();
+    }
+}
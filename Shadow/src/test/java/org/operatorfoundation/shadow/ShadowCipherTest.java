@@ -0,0 +1,120 @@
+package org.operatorfoundation.shadow;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowCipher;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowDarkStarCipher;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+public class ShadowCipherTest
+{
+    @BeforeClass
+    public static void installProvider()
+    {
+        TestProviders.install();
+    }
+
+    static SecretKey testKey()
+    {
+        byte[] keyBytes = new byte[32];
+        for (int index = 0; index < keyBytes.length; index++)
+        {
+            keyBytes[index] = (byte) index;
+        }
+
+        return new SecretKeySpec(keyBytes, "AES");
+    }
+
+    @Test
+    public void packByteBufferMatchesPackByteArrayTest() throws Exception
+    {
+        byte[] plaintext = "GET / HTTP/1.0\r\n\r\n".getBytes();
+        ShadowCipher arrayCipher = new ShadowDarkStarCipher(testKey());
+        ShadowCipher bufferCipher = new ShadowDarkStarCipher(testKey());
+
+        byte[] expected = arrayCipher.pack(plaintext);
+
+        ByteBuffer output = ByteBuffer.allocateDirect(ShadowCipher.packedSize(plaintext.length));
+        bufferCipher.pack(ByteBuffer.wrap(plaintext), output);
+        assertEquals(0, output.remaining());
+
+        byte[] actual = new byte[expected.length];
+        output.flip();
+        output.get(actual);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void decryptInPlaceTest() throws Exception
+    {
+        byte[] plaintext = new byte[1000];
+        for (int index = 0; index < plaintext.length; index++)
+        {
+            plaintext[index] = (byte) (index * 7);
+        }
+
+        ShadowCipher encryptionCipher = new ShadowDarkStarCipher(testKey());
+        ShadowCipher decryptionCipher = new ShadowDarkStarCipher(testKey());
+
+        for (boolean direct : new boolean[]{false, true})
+        {
+            int frameSize = ShadowCipher.packedSize(plaintext.length);
+            ByteBuffer frame = direct ? ByteBuffer.allocateDirect(frameSize) : ByteBuffer.allocate(frameSize);
+            encryptionCipher.pack(ByteBuffer.wrap(plaintext), frame);
+            frame.flip();
+
+            int payloadLength = decryptionCipher.unpackLength(frame);
+            assertEquals(plaintext.length, payloadLength);
+            assertEquals(payloadLength + 16, frame.remaining());
+
+            int decryptedLength = decryptionCipher.decryptInPlace(frame);
+            assertEquals(plaintext.length, decryptedLength);
+
+            byte[] decrypted = new byte[decryptedLength];
+            frame.get(decrypted);
+            assertArrayEquals(plaintext, decrypted);
+        }
+    }
+
+    @Test
+    public void decryptIntoShortBufferTest() throws Exception
+    {
+        byte[] plaintext = new byte[100];
+        ShadowCipher encryptionCipher = new ShadowDarkStarCipher(testKey());
+        ShadowCipher decryptionCipher = new ShadowDarkStarCipher(testKey());
+
+        ByteBuffer frame = ByteBuffer.wrap(encryptionCipher.pack(plaintext));
+        assertEquals(plaintext.length, decryptionCipher.unpackLength(frame));
+
+        byte[] backing = new byte[plaintext.length];
+        Arrays.fill(backing, (byte) 0x55);
+        int payloadStart = frame.position();
+        try
+        {
+            decryptionCipher.decrypt(frame, ByteBuffer.wrap(backing, 0, 10));
+            fail("decrypt wrote past the output's limit");
+        }
+        catch (ShortBufferException expected)
+        {
+            // nothing beyond the limit was touched, and the nonce was not used up
+            for (int index = 10; index < backing.length; index++)
+            {
+                assertEquals(0x55, backing[index]);
+            }
+        }
+
+        frame.position(payloadStart);
+        assertEquals(plaintext.length, decryptionCipher.decrypt(frame, ByteBuffer.wrap(backing)));
+        assertArrayEquals(plaintext, backing);
+    }
+}
@@ -0,0 +1,134 @@
+package org.operatorfoundation.shadow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.Test;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowConfigLoader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class ShadowConfigLoaderTest
+{
+    static final String config = "{\"version\":1,\"servers\":[]}";
+
+    // Serves config with an ETag, answering 304 to requests that already have it, and records each request's If-None-Match.
+    static HttpServer startServer(final List<String> ifNoneMatch) throws IOException
+    {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/config.json", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                String validator = exchange.getRequestHeaders().getFirst("If-None-Match");
+                ifNoneMatch.add(String.valueOf(validator));
+                if ("\"v1\"".equals(validator))
+                {
+                    exchange.sendResponseHeaders(304, -1);
+                }
+                else
+                {
+                    byte[] body = config.getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream output = exchange.getResponseBody())
+                    {
+                        output.write(body);
+                    }
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+
+        return server;
+    }
+
+    @Test
+    public void cachedConfigIsServedAndRevalidatedTest() throws Exception
+    {
+        final List<String> ifNoneMatch = new CopyOnWriteArrayList<>();
+        HttpServer server = startServer(ifNoneMatch);
+
+        File cacheDirectory = Files.createTempDirectory("shadow-config").toFile();
+        try
+        {
+            URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/config.json");
+
+            // nothing cached: the first load downloads
+            assertEquals(config, new ShadowConfigLoader(url, cacheDirectory, 60000).load());
+            assertEquals(1, ifNoneMatch.size());
+
+            // fresh: served from disk without touching the network
+            assertEquals(config, new ShadowConfigLoader(url, cacheDirectory, 60000).load());
+            assertEquals(1, ifNoneMatch.size());
+
+            // stale: still served from disk, and revalidated in the background
+            assertEquals(config, new ShadowConfigLoader(url, cacheDirectory, 0).load());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (ifNoneMatch.size() < 2 && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(10);
+            }
+            assertEquals("\"v1\"", ifNoneMatch.get(1));
+        }
+        finally
+        {
+            server.stop(0);
+            for (File file : cacheDirectory.listFiles())
+            {
+                assertTrue(file.delete());
+            }
+            cacheDirectory.delete();
+        }
+    }
+
+    @Test
+    public void corruptMetadataIsRefetchedTest() throws Exception
+    {
+        final List<String> ifNoneMatch = new CopyOnWriteArrayList<>();
+        HttpServer server = startServer(ifNoneMatch);
+
+        File cacheDirectory = Files.createTempDirectory("shadow-config").toFile();
+        try
+        {
+            URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/config.json");
+            assertEquals(config, new ShadowConfigLoader(url, cacheDirectory, 60000).load());
+
+            // a damaged write left fetchedAt unparsable
+            for (File file : cacheDirectory.listFiles())
+            {
+                if (file.getName().endsWith(".properties"))
+                {
+                    Files.write(file.toPath(), "fetchedAt=17x".getBytes("UTF-8"));
+                }
+            }
+
+            // the entry is ignored and fetched again from scratch, without the old validators
+            assertEquals(config, new ShadowConfigLoader(url, cacheDirectory, 60000).load());
+            assertEquals(2, ifNoneMatch.size());
+            assertEquals("null", ifNoneMatch.get(1));
+        }
+        finally
+        {
+            server.stop(0);
+            for (File file : cacheDirectory.listFiles())
+            {
+                assertTrue(file.delete());
+            }
+            cacheDirectory.delete();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.operatorfoundation.shadow;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.operatorfoundation.shapeshifter.shadow.java.DarkStar;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowConfig;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+
+public class ShadowConfigTest
+{
+    @BeforeClass
+    public static void installProvider()
+    {
+        TestProviders.install();
+    }
+
+    @Test
+    public void serverKeyIsDecodedOnceTest() throws Exception
+    {
+        KeyPair serverPersistent = DarkStarTestServer.oddKeyPair();
+        byte[] publicKeyData = DarkStar.publicKeyToBytes(serverPersistent.getPublic());
+        ShadowConfig config = new ShadowConfig(DarkStar.bytesToHex(publicKeyData), "DarkStar");
+
+        PublicKey publicKey = config.serverPersistentPublicKey();
+        assertSame(publicKey, config.serverPersistentPublicKey());
+        assertArrayEquals(publicKeyData, DarkStar.publicKeyToBytes(publicKey));
+    }
+
+    @Test(expected = InvalidKeySpecException.class)
+    public void rejectsMalformedPasswordTest() throws Exception
+    {
+        new ShadowConfig("not a key", "DarkStar").serverPersistentPublicKey();
+    }
+}
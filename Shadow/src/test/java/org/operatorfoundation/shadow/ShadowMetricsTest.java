@@ -0,0 +1,96 @@
+package org.operatorfoundation.shadow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.operatorfoundation.shapeshifter.shadow.java.Bloom;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowMetrics;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowSocket;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class ShadowMetricsTest
+{
+    @BeforeClass
+    public static void installProvider()
+    {
+        TestProviders.install();
+    }
+
+    @Test
+    public void connectionsAndHandshakesAreCountedTest() throws Exception
+    {
+        try (DarkStarTestServer server = new DarkStarTestServer())
+        {
+            ShadowMetrics.Snapshot before = ShadowMetrics.snapshot();
+            ShadowSocket socket = new ShadowSocket(server.config(), server.host(), server.port());
+
+            ShadowMetrics.Snapshot open = ShadowMetrics.snapshot();
+            assertEquals(before.activeConnections + 1, open.activeConnections);
+            assertEquals(before.handshakes + 1, open.handshakes);
+            assertEquals(before.handshakeLatency.count + 1, open.handshakeLatency.count);
+            assertEquals(before.connectLatency.count + 1, open.connectLatency.count);
+            assertTrue(open.handshakesPerSecond > 0);
+            assertTrue(open.handshakeLatency.maxMillis > 0);
+            assertTrue(open.handshakeLatency.p50Millis <= open.handshakeLatency.maxMillis);
+
+            socket.close();
+            socket.close();
+            assertEquals(before.activeConnections, ShadowMetrics.snapshot().activeConnections);
+        }
+    }
+
+    @Test
+    public void duplicateSaltsAreCountedTest()
+    {
+        Bloom bloom = new Bloom();
+        byte[] salt = BloomTest.salt(7);
+
+        long before = ShadowMetrics.snapshot().duplicateSalts;
+        bloom.checkBloom(salt);
+        bloom.checkBloom(salt);
+
+        assertEquals(before + 1, ShadowMetrics.snapshot().duplicateSalts);
+    }
+
+    @Test
+    public void snapshotJsonTest()
+    {
+        ShadowMetrics.Snapshot snapshot = ShadowMetrics.snapshot();
+        JsonObject json = new Gson().fromJson(snapshot.toJson(), JsonObject.class);
+
+        assertEquals(snapshot.handshakes, json.get("handshakes").getAsLong());
+        assertEquals(snapshot.decryptionFailures, json.get("decryptionFailures").getAsLong());
+        assertTrue(json.getAsJsonObject("handshakeLatency").has("p99Millis"));
+    }
+
+    @Test
+    public void mbeanTest() throws Exception
+    {
+        assertTrue(ShadowMetrics.registerMBean());
+        assertTrue(ShadowMetrics.registerMBean());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.operatorfoundation.shapeshifter.shadow:type=ShadowMetrics");
+        try
+        {
+            Object handshakes = server.getAttribute(name, "Handshakes");
+            assertTrue(handshakes instanceof Long);
+            assertTrue(((String) server.getAttribute(name, "Json")).contains("activeConnections"));
+        }
+        finally
+        {
+            ShadowMetrics.unregisterMBean();
+        }
+
+        assertTrue(!server.isRegistered(name));
+    }
+}
@@ -0,0 +1,422 @@
+package org.operatorfoundation.shadow;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.operatorfoundation.shadow.ShadowStreamTest.testBytes;
+
+import org.junit.Test;
+import org.operatorfoundation.shapeshifter.shadow.java.MultiplexedSocket;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowMultiplexer;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowSocket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ShadowMultiplexerTest
+{
+    // The server end accepts streams and echoes each one on its own thread until the client closes it.
+    static final DarkStarTestServer.Handler multiplexedEcho = new DarkStarTestServer.Handler()
+    {
+        @Override
+        public void serve(InputStream input, OutputStream output) throws Exception
+        {
+            ShadowMultiplexer multiplexer = new ShadowMultiplexer(input, output, false);
+            while (true)
+            {
+                final MultiplexedSocket stream = multiplexer.accept();
+                Thread echoThread = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            DarkStarTestServer.echo.serve(stream.getInputStream(), stream.getOutputStream());
+                            stream.close();
+                        }
+                        catch (Exception echoError)
+                        {
+                            stream.close();
+                        }
+                    }
+                });
+                echoThread.setDaemon(true);
+                echoThread.start();
+            }
+        }
+    };
+
+    @Test
+    public void manyStreamsOverOneHandshakeTest() throws Exception
+    {
+        try (DarkStarTestServer server = new DarkStarTestServer(multiplexedEcho))
+        {
+            ShadowSocket socket = new ShadowSocket(server.config(), server.host(), server.port());
+            final ShadowMultiplexer multiplexer = new ShadowMultiplexer(socket, true);
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+
+            try
+            {
+                List<Future<byte[]>> results = new ArrayList<>();
+                for (int index = 0; index < 16; index++)
+                {
+                    final int size = 1000 + index * 40000;
+                    results.add(executor.submit(new Callable<byte[]>()
+                    {
+                        @Override
+                        public byte[] call() throws Exception
+                        {
+                            return echoThroughStream(multiplexer.openStream(), testBytes(size));
+                        }
+                    }));
+                }
+
+                for (int index = 0; index < results.size(); index++)
+                {
+                    assertArrayEquals(testBytes(1000 + index * 40000), results.get(index).get());
+                }
+
+                assertEquals(1, server.handshakeCount());
+            }
+            finally
+            {
+                executor.shutdownNow();
+                multiplexer.close();
+            }
+        }
+    }
+
+    // Writes on a second thread so a payload larger than both windows cannot deadlock the echo.
+    static byte[] echoThroughStream(final MultiplexedSocket stream, final byte[] payload) throws Exception
+    {
+        Thread writer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    stream.getOutputStream().write(payload);
+                    stream.shutdownOutput();
+                }
+                catch (Exception writeError)
+                {
+                    writeError.printStackTrace();
+                }
+            }
+        });
+        writer.start();
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int bytesRead;
+        while ((bytesRead = stream.getInputStream().read(buffer)) != -1)
+        {
+            received.write(buffer, 0, bytesRead);
+        }
+
+        writer.join();
+        stream.close();
+
+        return received.toByteArray();
+    }
+
+    @Test
+    public void protocolErrorWakesBlockedReadersTest() throws Exception
+    {
+        try (ServerSocket listener = new ServerSocket(0))
+        {
+            Socket clientSocket = new Socket(listener.getInetAddress(), listener.getLocalPort());
+            Socket peer = listener.accept();
+            ShadowMultiplexer multiplexer = new ShadowMultiplexer(clientSocket, true);
+
+            try
+            {
+                MultiplexedSocket stream = multiplexer.openStream();
+                Future<Exception> blockedRead = readUntilFailure(stream);
+
+                // a frame type the protocol does not have
+                Thread.sleep(100);
+                writeFrame(peer.getOutputStream(), stream.getStreamId(), (byte) 9, new byte[0]);
+
+                assertTrue(blockedRead.get(5, TimeUnit.SECONDS) instanceof IOException);
+                assertTrue(multiplexer.isClosed());
+            }
+            finally
+            {
+                multiplexer.close();
+                peer.close();
+            }
+        }
+    }
+
+    @Test
+    public void resetFailsReadsAndWritesTest() throws Exception
+    {
+        try (ServerSocket listener = new ServerSocket(0))
+        {
+            Socket clientSocket = new Socket(listener.getInetAddress(), listener.getLocalPort());
+            Socket peer = listener.accept();
+            ShadowMultiplexer multiplexer = new ShadowMultiplexer(clientSocket, true);
+
+            try
+            {
+                MultiplexedSocket stream = multiplexer.openStream();
+                MultiplexedSocket other = multiplexer.openStream();
+                Future<Exception> blockedRead = readUntilFailure(stream);
+
+                Thread.sleep(100);
+                writeFrame(peer.getOutputStream(), stream.getStreamId(), (byte) 4, new byte[0]);
+
+                assertTrue(blockedRead.get(5, TimeUnit.SECONDS) instanceof IOException);
+                try
+                {
+                    stream.getOutputStream().write(1);
+                    fail("wrote to a reset stream");
+                }
+                catch (IOException expected)
+                {
+                    // the stream is gone
+                }
+
+                // the connection and the other streams carry on
+                assertTrue(!multiplexer.isClosed());
+                writeFrame(peer.getOutputStream(), other.getStreamId(), (byte) 1, new byte[]{42});
+                assertEquals(42, other.getInputStream().read());
+            }
+            finally
+            {
+                multiplexer.close();
+                peer.close();
+            }
+        }
+    }
+
+    @Test
+    public void sendingStopsAtTheWindowTest() throws Exception
+    {
+        try (ServerSocket listener = new ServerSocket(0))
+        {
+            Socket clientSocket = new Socket(listener.getInetAddress(), listener.getLocalPort());
+            final Socket peer = listener.accept();
+            ShadowMultiplexer multiplexer = new ShadowMultiplexer(clientSocket, true);
+
+            try
+            {
+                final MultiplexedSocket stream = multiplexer.openStream();
+                final AtomicLong dataReceived = new AtomicLong();
+                startCountingData(peer.getInputStream(), dataReceived);
+
+                Thread writer = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            stream.getOutputStream().write(new byte[1024 * 1024]);
+                        }
+                        catch (IOException writeError)
+                        {
+                            // the multiplexer was closed at the end of the test
+                        }
+                    }
+                });
+                writer.setDaemon(true);
+                writer.start();
+
+                // the peer never grants any window back, so exactly one window's worth arrives
+                assertEquals(ShadowMultiplexer.defaultWindowSize, waitForSteadyCount(dataReceived));
+
+                writeFrame(peer.getOutputStream(), stream.getStreamId(), (byte) 2, new byte[]{0, 1, 0, 0});
+                assertEquals(ShadowMultiplexer.defaultWindowSize + 65536, waitForSteadyCount(dataReceived));
+            }
+            finally
+            {
+                multiplexer.close();
+                peer.close();
+            }
+        }
+    }
+
+    @Test
+    public void closeSendsWhatWasAlreadyWrittenTest() throws Exception
+    {
+        try (ServerSocket listener = new ServerSocket(0))
+        {
+            Socket clientSocket = new Socket(listener.getInetAddress(), listener.getLocalPort());
+            Socket peer = listener.accept();
+            ShadowMultiplexer multiplexer = new ShadowMultiplexer(clientSocket, true);
+
+            try
+            {
+                MultiplexedSocket stream = multiplexer.openStream();
+                final AtomicLong dataReceived = new AtomicLong();
+                startCountingData(peer.getInputStream(), dataReceived);
+
+                // write returns once the data is buffered, so all of it is still queued when the streams are closed
+                stream.getOutputStream().write(testBytes(60000));
+                stream.close();
+                multiplexer.close();
+
+                assertTrue(multiplexer.isClosed());
+                assertEquals(60000, waitForSteadyCount(dataReceived));
+            }
+            finally
+            {
+                multiplexer.close();
+                peer.close();
+            }
+        }
+    }
+
+    @Test
+    public void readHonorsSoTimeoutTest() throws Exception
+    {
+        try (ServerSocket listener = new ServerSocket(0))
+        {
+            Socket clientSocket = new Socket(listener.getInetAddress(), listener.getLocalPort());
+            Socket peer = listener.accept();
+            ShadowMultiplexer multiplexer = new ShadowMultiplexer(clientSocket, true);
+
+            try
+            {
+                MultiplexedSocket stream = multiplexer.openStream();
+                stream.setSoTimeout(200);
+                assertEquals(200, stream.getSoTimeout());
+
+                long start = System.currentTimeMillis();
+                try
+                {
+                    stream.getInputStream().read();
+                    fail("read returned with nothing to read");
+                }
+                catch (SocketTimeoutException expected)
+                {
+                    assertTrue(System.currentTimeMillis() - start >= 200);
+                }
+
+                // the stream still works after a timeout
+                writeFrame(peer.getOutputStream(), stream.getStreamId(), (byte) 1, new byte[]{42});
+                assertEquals(42, stream.getInputStream().read());
+                assertTrue(stream.isConnected());
+
+                peer.close();
+                readUntilFailure(stream).get(5, TimeUnit.SECONDS);
+                assertTrue(!stream.isConnected());
+            }
+            finally
+            {
+                multiplexer.close();
+                peer.close();
+            }
+        }
+    }
+
+    // Reads stream on another thread until a read fails, and returns the failure, or null if the stream ended.
+    static Future<Exception> readUntilFailure(final MultiplexedSocket stream)
+    {
+        FutureTask<Exception> task = new FutureTask<>(new Callable<Exception>()
+        {
+            @Override
+            public Exception call()
+            {
+                try
+                {
+                    while (stream.getInputStream().read() != -1)
+                    {
+                    }
+
+                    return null;
+                }
+                catch (IOException readError)
+                {
+                    return readError;
+                }
+            }
+        });
+
+        Thread reader = new Thread(task);
+        reader.setDaemon(true);
+        reader.start();
+
+        return task;
+    }
+
+    // Reads raw mux frames from the peer's side and adds up the DATA payload bytes.
+    static void startCountingData(final InputStream input, final AtomicLong dataReceived)
+    {
+        Thread counter = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                DataInputStream frames = new DataInputStream(input);
+                byte[] payload = new byte[65535];
+
+                try
+                {
+                    while (true)
+                    {
+                        frames.readInt();
+                        byte type = frames.readByte();
+                        int length = frames.readUnsignedShort();
+                        frames.readFully(payload, 0, length);
+
+                        if (type == 1)
+                        {
+                            dataReceived.addAndGet(length);
+                        }
+                    }
+                }
+                catch (IOException closed)
+                {
+                    // the test is over
+                }
+            }
+        });
+        counter.setDaemon(true);
+        counter.start();
+    }
+
+    // Waits until count has stopped changing for half a second and returns it.
+    static long waitForSteadyCount(AtomicLong count) throws InterruptedException
+    {
+        long last = -1;
+        while (count.get() != last)
+        {
+            last = count.get();
+            Thread.sleep(500);
+        }
+
+        return last;
+    }
+
+    static void writeFrame(OutputStream output, int id, byte type, byte[] payload) throws IOException
+    {
+        DataOutputStream frame = new DataOutputStream(output);
+        frame.writeInt(id);
+        frame.writeByte(type);
+        frame.writeShort(payload.length);
+        frame.write(payload);
+        frame.flush();
+    }
+}
@@ -0,0 +1,71 @@
+package org.operatorfoundation.shadow;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.operatorfoundation.shadow.ShadowStreamTest.testBytes;
+
+import org.junit.Test;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowSocketChannel;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+public class ShadowSocketChannelTest
+{
+    @Test
+    public void selectorEchoTest() throws Exception
+    {
+        try (DarkStarTestServer server = new DarkStarTestServer(); Selector selector = Selector.open())
+        {
+            byte[] plaintext = testBytes(100000);
+            ShadowSocketChannel[] channels = new ShadowSocketChannel[3];
+            ByteBuffer[] toSend = new ByteBuffer[channels.length];
+            ByteBuffer[] received = new ByteBuffer[channels.length];
+
+            for (int index = 0; index < channels.length; index++)
+            {
+                channels[index] = ShadowSocketChannel.open(server.config(), server.host(), server.port());
+                toSend[index] = ByteBuffer.wrap(plaintext);
+                received[index] = ByteBuffer.allocate(plaintext.length);
+                channels[index].register(selector, channels[index].interestOps(), index);
+            }
+
+            // one thread drives every tunnel
+            long deadline = System.currentTimeMillis() + 20000;
+            int finished = 0;
+            while (finished < channels.length && System.currentTimeMillis() < deadline)
+            {
+                selector.select(100);
+                selector.selectedKeys().clear();
+
+                finished = 0;
+                for (int index = 0; index < channels.length; index++)
+                {
+                    ShadowSocketChannel channel = channels[index];
+                    if (channel.finishConnect())
+                    {
+                        channel.write(toSend[index]);
+                        channel.flush();
+                        channel.read(received[index]);
+                    }
+
+                    if (!received[index].hasRemaining())
+                    {
+                        finished++;
+                    }
+
+                    SelectionKey key = channel.getSocketChannel().keyFor(selector);
+                    key.interestOps(channel.interestOps());
+                }
+            }
+
+            for (int index = 0; index < channels.length; index++)
+            {
+                assertTrue(channels[index].isEstablished());
+                assertArrayEquals(plaintext, received[index].array());
+                channels[index].close();
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.operatorfoundation.shadow;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowSocket;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowSocketStats;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+
+public class ShadowSocketStatsTest
+{
+    @BeforeClass
+    public static void installProvider()
+    {
+        TestProviders.install();
+    }
+
+    @Test
+    public void echoIsCountedTest() throws Exception
+    {
+        try (DarkStarTestServer server = new DarkStarTestServer())
+        {
+            ShadowSocket socket = new ShadowSocket(server.config(), server.host(), server.port());
+            try
+            {
+                ShadowSocketStats stats = socket.getStats();
+                assertTrue(stats.getConnectNanos() > 0);
+                assertTrue(stats.getHandshakeSendNanos() > 0);
+                assertTrue(stats.getHandshakeReceiveNanos() > 0);
+                assertTrue(stats.getKeyDerivationNanos() > 0);
+
+                // one full frame and one 100 byte frame each way
+                byte[] sent = new byte[20000];
+                for (int index = 0; index < sent.length; index++)
+                {
+                    sent[index] = (byte) index;
+                }
+
+                OutputStream output = socket.getOutputStream();
+                output.write(sent);
+                byte[] received = new byte[sent.length];
+                new DataInputStream(socket.getInputStream()).readFully(received);
+                assertArrayEquals(sent, received);
+
+                assertEquals(sent.length, stats.getBytesSent());
+                assertEquals(2, stats.getFramesSent());
+                assertEquals(sent.length, stats.getBytesReceived());
+                assertEquals(sent.length + 2 * 34, stats.getWireBytesSent());
+                assertTrue(stats.getEncryptNanos() > 0);
+                assertTrue(stats.getDecryptNanos() > 0);
+                assertEquals(0, stats.getRedials());
+
+                long[] sizes = stats.getSentFrameSizes();
+                assertEquals(ShadowSocketStats.frameSizeBucketCount, sizes.length);
+                assertEquals(1, sizes[15]);
+                assertEquals(1, sizes[12]);
+            }
+            finally
+            {
+                socket.close();
+            }
+        }
+    }
+}
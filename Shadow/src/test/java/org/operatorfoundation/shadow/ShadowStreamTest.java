@@ -0,0 +1,457 @@
+package org.operatorfoundation.shadow;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.operatorfoundation.shadow.ShadowCipherTest.testKey;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowCipher;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowDarkStarCipher;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowInputStream;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ShadowStreamTest
+{
+    @BeforeClass
+    public static void installProvider()
+    {
+        TestProviders.install();
+    }
+
+    static byte[] testBytes(int length)
+    {
+        byte[] bytes = new byte[length];
+        for (int index = 0; index < length; index++)
+        {
+            bytes[index] = (byte) (index * 31 + 7);
+        }
+
+        return bytes;
+    }
+
+    static byte[] readFully(InputStream input, int length, int readSize) throws IOException
+    {
+        byte[] result = new byte[length];
+        int offset = 0;
+        while (offset < length)
+        {
+            int bytesRead = input.read(result, offset, Math.min(readSize, length - offset));
+            if (bytesRead == -1)
+            {
+                break;
+            }
+            offset += bytesRead;
+        }
+
+        assertEquals(length, offset);
+        return result;
+    }
+
+    @Test
+    public void coalescingWritesTest() throws Exception
+    {
+        ByteArrayOutputStream network = new ByteArrayOutputStream();
+        ShadowOutputStream output = new ShadowOutputStream(network, new ShadowDarkStarCipher(testKey()));
+        output.setCoalescing(true, 0);
+
+        byte[] plaintext = testBytes(1000);
+        for (int offset = 0; offset < plaintext.length; offset += 10)
+        {
+            output.write(plaintext, offset, 10);
+        }
+        assertEquals(0, network.size());
+
+        output.flush();
+        assertEquals(ShadowCipher.packedSize(plaintext.length), network.size());
+
+        ShadowInputStream input = new ShadowInputStream(null, new ByteArrayInputStream(network.toByteArray()), new ShadowDarkStarCipher(testKey()));
+        assertArrayEquals(plaintext, readFully(input, plaintext.length, plaintext.length));
+    }
+
+    @Test
+    public void timedFlushTest() throws Exception
+    {
+        ByteArrayOutputStream network = new ByteArrayOutputStream();
+        ShadowOutputStream output = new ShadowOutputStream(network, new ShadowDarkStarCipher(testKey()));
+        output.setCoalescing(true, 20);
+
+        output.write(testBytes(5));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline)
+        {
+            synchronized (output)
+            {
+                if (network.size() > 0)
+                {
+                    break;
+                }
+            }
+            Thread.sleep(10);
+        }
+
+        assertEquals(ShadowCipher.packedSize(5), network.size());
+    }
+
+    @Test
+    public void stuckStreamDoesNotDelayOtherTimedFlushesTest() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        OutputStream stuckNetwork = new OutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException interrupted)
+                {
+                    throw new IOException();
+                }
+            }
+        };
+
+        ShadowOutputStream stuck = new ShadowOutputStream(stuckNetwork, new ShadowDarkStarCipher(testKey()));
+        stuck.setCoalescing(true, 10);
+        ByteArrayOutputStream network = new ByteArrayOutputStream();
+        ShadowOutputStream healthy = new ShadowOutputStream(network, new ShadowDarkStarCipher(testKey()));
+        healthy.setCoalescing(true, 50);
+
+        try
+        {
+            stuck.write(testBytes(5));
+            Thread.sleep(50);
+            healthy.write(testBytes(5));
+
+            long deadline = System.currentTimeMillis() + 2000;
+            while (network.size() == 0 && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(10);
+            }
+
+            assertEquals(ShadowCipher.packedSize(5), network.size());
+        }
+        finally
+        {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void failedTimedFlushIsRethrownTest() throws Exception
+    {
+        OutputStream brokenNetwork = new OutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                throw new IOException("Connection reset");
+            }
+        };
+
+        ShadowOutputStream output = new ShadowOutputStream(brokenNetwork, new ShadowDarkStarCipher(testKey()));
+        output.setCoalescing(true, 10);
+        output.write(testBytes(5));
+        Thread.sleep(300);
+
+        try
+        {
+            output.write(testBytes(5));
+            fail("the failed timed flush was not reported");
+        }
+        catch (IOException expected)
+        {
+            // the bytes from the first write were lost, so the stream reports it
+        }
+    }
+
+    @Test
+    public void timedFlushKeepsFrameOrderTest() throws Exception
+    {
+        ByteArrayOutputStream network = new ByteArrayOutputStream();
+        ShadowOutputStream output = new ShadowOutputStream(network, new ShadowDarkStarCipher(testKey()));
+        output.setCoalescing(true, 5);
+
+        byte[] plaintext = testBytes(40000);
+        for (int offset = 0; offset < plaintext.length; offset += 4000)
+        {
+            output.write(plaintext, offset, 4000);
+            Thread.sleep(offset % 8000 == 0 ? 20 : 0);
+        }
+        output.flush();
+
+        ShadowInputStream input = new ShadowInputStream(null, new ByteArrayInputStream(network.toByteArray()), new ShadowDarkStarCipher(testKey()));
+        assertArrayEquals(plaintext, readFully(input, plaintext.length, 40000));
+    }
+
+    @Test
+    public void largeWriteSplitsIntoFramesTest() throws Exception
+    {
+        ByteArrayOutputStream network = new ByteArrayOutputStream();
+        ShadowOutputStream output = new ShadowOutputStream(network, new ShadowDarkStarCipher(testKey()));
+        output.setCoalescing(true, 0);
+
+        byte[] plaintext = testBytes(40000);
+        output.write(plaintext, 0, 3);
+        output.write(plaintext, 3, plaintext.length - 3);
+        output.close();
+
+        ShadowInputStream input = new ShadowInputStream(null, new ByteArrayInputStream(network.toByteArray()), new ShadowDarkStarCipher(testKey()));
+        assertArrayEquals(plaintext, readFully(input, plaintext.length, 40000));
+        assertEquals(-1, input.read());
+    }
+
+    @Test
+    public void smallReadsTest() throws Exception
+    {
+        ByteArrayOutputStream network = new ByteArrayOutputStream();
+        ShadowOutputStream output = new ShadowOutputStream(network, new ShadowDarkStarCipher(testKey()));
+
+        byte[] plaintext = testBytes(20000);
+        output.write(plaintext);
+
+        ShadowInputStream input = new ShadowInputStream(null, new ByteArrayInputStream(network.toByteArray()), new ShadowDarkStarCipher(testKey()));
+        assertEquals(plaintext[0] & 0xFF, input.read());
+        assertEquals(plaintext[1] & 0xFF, input.read());
+
+        byte[] rest = readFully(input, plaintext.length - 2, 7);
+        for (int index = 0; index < rest.length; index++)
+        {
+            assertEquals(plaintext[index + 2], rest[index]);
+        }
+    }
+
+    @Test
+    public void readAheadParsesManyFramesPerNetworkReadTest() throws Exception
+    {
+        ByteArrayOutputStream network = new ByteArrayOutputStream();
+        ShadowOutputStream output = new ShadowOutputStream(network, new ShadowDarkStarCipher(testKey()));
+
+        byte[] plaintext = testBytes(100);
+        for (int frame = 0; frame < 50; frame++)
+        {
+            output.write(plaintext);
+        }
+
+        final int[] networkReads = {0};
+        InputStream countingNetwork = new ByteArrayInputStream(network.toByteArray())
+        {
+            @Override
+            public synchronized int read(byte[] b, int off, int len)
+            {
+                networkReads[0]++;
+                return super.read(b, off, len);
+            }
+        };
+
+        ShadowInputStream input = new ShadowInputStream(null, countingNetwork, new ShadowDarkStarCipher(testKey()));
+        assertArrayEquals(plaintext, readFully(input, plaintext.length, plaintext.length));
+        assertEquals(plaintext.length, input.available());
+
+        for (int frame = 1; frame < 50; frame++)
+        {
+            assertArrayEquals(plaintext, readFully(input, plaintext.length, plaintext.length));
+        }
+
+        assertEquals(1, networkReads[0]);
+        assertEquals(0, input.available());
+    }
+
+    @Test
+    public void pipelinedReadsTest() throws Exception
+    {
+        ByteArrayOutputStream network = new ByteArrayOutputStream();
+        ShadowOutputStream output = new ShadowOutputStream(network, new ShadowDarkStarCipher(testKey()));
+
+        byte[] plaintext = testBytes(300000);
+        int offset = 0;
+        for (int size = 1; offset < plaintext.length; size = (size * 3 + 1) % 20000)
+        {
+            int frameSize = Math.min(size, plaintext.length - offset);
+            output.write(plaintext, offset, frameSize);
+            offset += frameSize;
+        }
+
+        ShadowInputStream input = new ShadowInputStream(null, new ByteArrayInputStream(network.toByteArray()), new ShadowDarkStarCipher(testKey()));
+
+        // start with a partial read so the pipeline takes over mid-stream
+        assertEquals(plaintext[0] & 0xFF, input.read());
+        input.enablePipelinedReads(4);
+
+        byte[] rest = readFully(input, plaintext.length - 1, 5000);
+        for (int index = 0; index < rest.length; index++)
+        {
+            assertEquals(plaintext[index + 1], rest[index]);
+        }
+
+        assertEquals(-1, input.read());
+        input.close();
+    }
+
+    @Test
+    public void closeWakesBlockedPipelinedReaderTest() throws Exception
+    {
+        try (ServerSocket listener = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1")))
+        {
+            Socket socket = new Socket(listener.getInetAddress(), listener.getLocalPort());
+            Socket peer = listener.accept();
+
+            try
+            {
+                // the peer never sends anything, so the reader blocks until the stream is closed
+                final ShadowInputStream input = new ShadowInputStream(null, socket.getInputStream(), new ShadowDarkStarCipher(testKey()));
+                input.enablePipelinedReads(4);
+
+                FutureTask<Exception> reader = new FutureTask<>(new Callable<Exception>()
+                {
+                    @Override
+                    public Exception call()
+                    {
+                        try
+                        {
+                            input.read();
+                            return null;
+                        }
+                        catch (IOException readError)
+                        {
+                            return readError;
+                        }
+                    }
+                });
+                Thread readerThread = new Thread(reader);
+                readerThread.setDaemon(true);
+                readerThread.start();
+                Thread.sleep(100);
+
+                input.close();
+                assertTrue(reader.get(5, TimeUnit.SECONDS) instanceof IOException);
+
+                try
+                {
+                    input.read();
+                    fail("read from a closed stream");
+                }
+                catch (IOException expected)
+                {
+                    // the stream is closed
+                }
+            }
+            finally
+            {
+                socket.close();
+                peer.close();
+            }
+        }
+    }
+
+    @Test
+    public void failedParallelSealWaitsForWorkersAndFailsTheStreamTest() throws Exception
+    {
+        // parallel sealing only runs with more than one core
+        if (Runtime.getRuntime().availableProcessors() < 2)
+        {
+            return;
+        }
+
+        final Thread writer = Thread.currentThread();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger finished = new AtomicInteger();
+        ShadowCipher cipher = new ShadowDarkStarCipher(testKey())
+        {
+            @Override
+            public ShadowCipher fork() throws Exception
+            {
+                return new ShadowDarkStarCipher(testKey())
+                {
+                    @Override
+                    public void pack(long nonce, ByteBuffer plaintext, ByteBuffer output) throws Exception
+                    {
+                        if (Thread.currentThread() == writer)
+                        {
+                            throw new IllegalStateException("seal failed");
+                        }
+
+                        // the workers are slow, so they are still sealing when the writer's own share fails
+                        running.incrementAndGet();
+                        Thread.sleep(50);
+                        super.pack(nonce, plaintext, output);
+                        finished.incrementAndGet();
+                    }
+                };
+            }
+        };
+
+        ShadowOutputStream output = new ShadowOutputStream(new ByteArrayOutputStream(), cipher);
+        output.setParallelSeal(1);
+        byte[] plaintext = testBytes(200000);
+
+        try
+        {
+            output.write(plaintext);
+            fail("a failed seal was not reported");
+        }
+        catch (IOException expected)
+        {
+            assertEquals(running.get(), finished.get());
+        }
+
+        try
+        {
+            output.write(plaintext, 0, 10);
+            fail("wrote after the nonces were lost");
+        }
+        catch (IOException expected)
+        {
+            // the stream stays failed
+        }
+    }
+
+    @Test
+    public void parallelSealMatchesSequentialTest() throws Exception
+    {
+        byte[] plaintext = testBytes(1500000);
+
+        ByteArrayOutputStream sequentialNetwork = new ByteArrayOutputStream();
+        ShadowOutputStream sequentialOutput = new ShadowOutputStream(sequentialNetwork, new ShadowDarkStarCipher(testKey()));
+        sequentialOutput.write(plaintext, 0, 100);
+        sequentialOutput.write(plaintext, 100, plaintext.length - 100);
+
+        ByteArrayOutputStream parallelNetwork = new ByteArrayOutputStream();
+        ShadowOutputStream parallelOutput = new ShadowOutputStream(parallelNetwork, new ShadowDarkStarCipher(testKey()));
+        parallelOutput.setParallelSeal(1);
+        parallelOutput.write(plaintext, 0, 100);
+        parallelOutput.write(plaintext, 100, plaintext.length - 100);
+
+        // nonces are deterministic, so sealing in parallel must not change a single byte on the wire
+        assertArrayEquals(sequentialNetwork.toByteArray(), parallelNetwork.toByteArray());
+
+        ShadowInputStream input = new ShadowInputStream(null, new ByteArrayInputStream(parallelNetwork.toByteArray()), new ShadowDarkStarCipher(testKey()));
+        assertArrayEquals(plaintext, readFully(input, plaintext.length, 65536));
+    }
+}
@@ -0,0 +1,16 @@
+package org.operatorfoundation.shadow;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.security.Security;
+
+// Unit tests run with SDK_INT == 0, which selects the "BC" provider by name, so tests that touch the crypto
+// register it first.
+public class TestProviders
+{
+    public static void install()
+    {
+        // does nothing if the provider is already registered
+        Security.addProvider(new BouncyCastleProvider());
+    }
+}
@@ -0,0 +1,131 @@
+package org.operatorfoundation.shadow;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.operatorfoundation.shapeshifter.shadow.java.EndpointSelector;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowEndpoint;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowSocket;
+import org.operatorfoundation.shapeshifter.shadow.java.ShadowSocketFactory;
+import org.operatorfoundation.shapeshifter.shadow.java.WarmSocketPool;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WarmSocketPoolTest
+{
+    @Test
+    public void warmSocketsAreHandedOutAndRefilledTest() throws Exception
+    {
+        try (DarkStarTestServer server = new DarkStarTestServer())
+        {
+            ShadowSocketFactory factory = new ShadowSocketFactory(server.config(), server.host(), server.port());
+            factory.enableWarmPool(2, 60000);
+            WarmSocketPool pool = factory.getWarmPool();
+            try
+            {
+                waitForSize(pool, 2);
+                assertEquals(2, server.handshakeCount());
+
+                try (Socket socket = factory.createSocket())
+                {
+                    byte[] message = "warm".getBytes();
+                    socket.getOutputStream().write(message);
+                    socket.getOutputStream().flush();
+
+                    byte[] echoed = new byte[message.length];
+                    new DataInputStream(socket.getInputStream()).readFully(echoed);
+                    assertArrayEquals(message, echoed);
+                }
+
+                assertEquals(1, pool.hitCount());
+                assertEquals(0, pool.missCount());
+                assertTrue(pool.hitRate() == 1.0);
+
+                // the pool tops itself back up
+                waitForSize(pool, 2);
+                assertEquals(3, server.handshakeCount());
+            }
+            finally
+            {
+                factory.disableWarmPool();
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void idleTimeoutMustBePositiveTest() throws Exception
+    {
+        try (DarkStarTestServer server = new DarkStarTestServer())
+        {
+            new WarmSocketPool(server.config(), server.host(), server.port(), 1, 0);
+        }
+    }
+
+    @Test
+    public void idleSocketsAreEvictedTest() throws Exception
+    {
+        try (DarkStarTestServer server = new DarkStarTestServer())
+        {
+            WarmSocketPool pool = new WarmSocketPool(server.config(), server.host(), server.port(), 1, 200);
+            try
+            {
+                waitForSize(pool, 1);
+                Thread.sleep(1000);
+                assertTrue(pool.evictionCount() > 0);
+            }
+            finally
+            {
+                pool.stop();
+            }
+        }
+    }
+
+    @Test
+    public void refillSurvivesUncheckedErrorsTest() throws Exception
+    {
+        try (DarkStarTestServer server = new DarkStarTestServer())
+        {
+            final AtomicInteger dials = new AtomicInteger();
+            EndpointSelector endpoints = new EndpointSelector(Collections.singletonList(new ShadowEndpoint(server.config(), server.host(), server.port())))
+            {
+                @Override
+                public ShadowSocket dial() throws IOException
+                {
+                    if (dials.incrementAndGet() == 1)
+                    {
+                        throw new IllegalStateException("provider failure");
+                    }
+
+                    return super.dial();
+                }
+            };
+
+            WarmSocketPool pool = new WarmSocketPool(endpoints, 1, 60000);
+            try
+            {
+                waitForSize(pool, 1);
+                assertTrue(dials.get() >= 2);
+            }
+            finally
+            {
+                pool.stop();
+            }
+        }
+    }
+
+    static void waitForSize(WarmSocketPool pool, int size) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pool.size() < size && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(size, pool.size());
+    }
+}